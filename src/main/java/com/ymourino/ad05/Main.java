@@ -23,12 +23,17 @@
  */
 package com.ymourino.ad05;
 
+import com.ymourino.ad05.persistence.ChangeLog;
+import com.ymourino.ad05.persistence.ChunkStore;
 import com.ymourino.ad05.persistence.DBHelper;
 import com.ymourino.ad05.persistence.HibernateUtil;
 import com.ymourino.ad05.persistence.IJPAUtil;
-import com.ymourino.ad05.persistence.models.Directory;
-import com.ymourino.ad05.utils.Config;
+import com.ymourino.ad05.persistence.models.Change;
+import com.ymourino.ad05.ui.DirectoryNode;
+import com.ymourino.ad05.ui.LazyDirectoryTreeModel;
+import com.ymourino.ad05.ui.PagedFileTableModel;
 import com.ymourino.ad05.utils.ConfigBuilder;
+import com.ymourino.ad05.utils.SyncState;
 import com.ymourino.ad05.utils.threads.ListenNotifications;
 import com.ymourino.ad05.utils.threads.WatchChanges;
 import java.io.File;
@@ -39,18 +44,13 @@ import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.sql.CallableStatement;
 import java.sql.Connection;
-import java.sql.DriverManager;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
-import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.swing.JOptionPane;
 import javax.swing.event.TreeSelectionEvent;
-import javax.swing.table.DefaultTableModel;
-import javax.swing.tree.DefaultMutableTreeNode;
 import javax.swing.tree.DefaultTreeCellRenderer;
-import javax.swing.tree.DefaultTreeModel;
 
 /**
  *
@@ -60,6 +60,8 @@ public class Main extends javax.swing.JFrame {
 
     private static final long serialVersionUID = -1224279262403702125L;
 
+    private PagedFileTableModel fileTableModel;
+
     /**
      * Creates new form Main
      */
@@ -70,21 +72,66 @@ public class Main extends javax.swing.JFrame {
         // datos, y la base de datos con la información del directorio local.
         try {
             ConfigBuilder config = ConfigBuilder.getConfig();
-            DBHelper.restoreDirectoryFromDB(config.getApp().getDirectory());
-            Directory root = DBHelper.addDirectoryToDB(config.getApp().getDirectory());
+            SyncState state = new SyncState(config.getApp().getDirectory());
+            ListenNotifications listener = new ListenNotifications(config.getApp().getDirectory(), state);
+
+            if (config.getApp().getChangeLogRetentionDays() > 0) {
+                ChangeLog.prune(config.getApp().getChangeLogRetentionDays());
+            }
+
+            // Fragmentos que han dejado de usarse al modificar o eliminar
+            // ficheros.
+            ChunkStore.deleteUnreferenced(HibernateUtil.getHibernateUtil());
+
+            if (state.hasCursor() && ChangeLog.isPrunedAfter(state.getCursor())) {
+                // Se han borrado cambios que este cliente no ha aplicado,
+                // así que se vuelve a sincronizar todo como la primera vez.
+                Logger.getLogger(Main.class.getName()).log(Level.WARNING,
+                        "El registro de cambios ya no llega hasta el cursor {0}",
+                        state.getCursor());
+                state.clearCursor();
+            }
+
+            if (state.hasCursor()) {
+                // Solo se aplican los cambios posteriores a la última
+                // sincronización.
+                listener.catchUp();
+            } else {
+                // Primera sincronización: se restaura todo y se toma como
+                // cursor el punto del registro anterior a la restauración
+                // (los cambios posteriores se aplicarán después).
+                SyncState.Cursor start = ChangeLog.getStartCursor();
+                DBHelper.restoreDirectoryFromDB(config.getApp().getDirectory());
+                state.setCursor(start);
+            }
+
+            // Solo se envían a la base de datos los elementos que han cambiado
+            // en disco desde la última sincronización.
+            DBHelper.syncDirectoryToDB(config.getApp().getDirectory(), state.getManifest());
+            state.saveManifest();
 
             // TODO: la información de directorios y ficheros en la interfaz no
             //  se actualiza adecuadamente cuando los hilos añaden o recuperan
             //  información desde la base de datos.
-            WatchChanges watcher = new WatchChanges(config.getApp().getDirectory());
+            WatchChanges watcher = new WatchChanges(config.getApp().getDirectory(), state);
             watcher.start();
 
-            ListenNotifications listener = new ListenNotifications(config.getApp().getDirectory());
             listener.start();
 
-            DefaultMutableTreeNode treeRoot = new DefaultMutableTreeNode("root");
-            populateTree(root, treeRoot);
-            treeFolders.setModel(new DefaultTreeModel(treeRoot));
+            // El árbol solo carga las carpetas que se van desplegando.
+            DirectoryNode root = loadRootNode();
+
+            if (root != null) {
+                LazyDirectoryTreeModel treeModel = new LazyDirectoryTreeModel(
+                        HibernateUtil.getHibernateUtil(), root);
+                treeFolders.setModel(treeModel);
+                treeFolders.addTreeWillExpandListener(treeModel);
+                treeFolders.setRootVisible(true);
+            }
+
+            // La tabla solo carga las páginas de ficheros que se muestran.
+            fileTableModel = new PagedFileTableModel(HibernateUtil.getHibernateUtil());
+            tableFiles.setModel(fileTableModel);
 
             DefaultTreeCellRenderer renderer = (DefaultTreeCellRenderer) treeFolders.getCellRenderer();
             renderer.setLeafIcon(renderer.getClosedIcon());
@@ -109,21 +156,26 @@ public class Main extends javax.swing.JFrame {
     }
 
     /**
-     * Dado un objeto Directory extrae su información para crear el árbol donde
-     * se mostrarán las carpetas existentes en la base de datos.
+     * Obtiene de la base de datos el nodo del directorio raíz para el árbol de
+     * carpetas.
      *
-     * @param directory
-     * @param node
+     * @return El nodo raíz, o null si la base de datos está vacía.
+     * @throws Exception
      */
-    private void populateTree(Directory directory, DefaultMutableTreeNode node) {
-        DefaultMutableTreeNode newNode = new DefaultMutableTreeNode(directory);
-        node.add(newNode);
-
-        if (!directory.getDirectories().isEmpty()) {
-            for (Map.Entry<String, Directory> d : directory.getDirectories().entrySet()) {
-                populateTree(d.getValue(), newNode);
-            }
-        }
+    private DirectoryNode loadRootNode() throws Exception {
+        Object[] row = HibernateUtil.getHibernateUtil().inTransaction((session)
+                -> session.createQuery(
+                        "select d.id, d.name, "
+                        + "case when exists (select c.id from Directory c where c.parent = d) "
+                        + "then 1 else 0 end "
+                        + "from Directory d where d.parent is null",
+                        Object[].class)
+                        .uniqueResult());
+
+        return row != null
+                ? new DirectoryNode(null, (Long) row[0], (String) row[1],
+                        ((Number) row[2]).intValue() > 0)
+                : null;
     }
 
     /**
@@ -131,24 +183,11 @@ public class Main extends javax.swing.JFrame {
      * los ficheros que contiene.
      */
     private void populateTable() {
-        DefaultMutableTreeNode node = (DefaultMutableTreeNode) treeFolders.getLastSelectedPathComponent();
-
-        if (node != null) {
-            Object nodeContent = node.getUserObject();
-
-            if (nodeContent instanceof Directory) {
-                Map<String, com.ymourino.ad05.persistence.models.File> files = ((Directory) nodeContent).getFiles();
-
-                DefaultTableModel tableModel = (DefaultTableModel) tableFiles.getModel();
-                tableModel.setRowCount(0);
+        Object node = treeFolders.getLastSelectedPathComponent();
 
-                if (!files.isEmpty()) {
-                    files.entrySet().forEach((file) -> {
-                        tableModel.addRow(new Object[]{file.getValue().getName(), file.getValue().getSize()});
-                    });
-                }
-            }
-        }
+        fileTableModel.setDirectory(node instanceof DirectoryNode
+                ? ((DirectoryNode) node).getId()
+                : null);
     }
 
     /**
@@ -265,8 +304,9 @@ public class Main extends javax.swing.JFrame {
     }
 
     /**
-     * Se crea en la base de datos el trigger y la función utilizados para
-     * notificar la creación de nuevos ficheros.
+     * Se crean en la base de datos los triggers y la función utilizados para
+     * registrar y notificar los cambios en ficheros y directorios, y se migran
+     * los datos de las versiones anteriores del esquema.
      *
      * @throws Exception
      */
@@ -275,41 +315,154 @@ public class Main extends javax.swing.JFrame {
         // de la base de datos si no existiese.
         IJPAUtil hibernateUtil = HibernateUtil.getHibernateUtil();
 
-        ConfigBuilder config = ConfigBuilder.getConfig();
-        Config.DbConnection dbConnection = config.getDbConnection();
-
-        Class.forName("org.postgresql.Driver");
-        String pgUrl = "jdbc:postgresql://"
-                + dbConnection.getAddress()
-                + "/" + dbConnection.getName();
-
-        Connection conn = DriverManager.getConnection(
-                pgUrl,
-                dbConnection.getUser(),
-                dbConnection.getPassword());
+        Connection conn = hibernateUtil.getDataSource().getConnection();
+        conn.setAutoCommit(true);
 
+        // Cada inserción, modificación o borrado en files y directories se
+        // apunta en el registro de cambios (change_log) y se avisa a los
+        // clientes. El aviso no lleva datos: los clientes leen el registro
+        // desde su cursor.
         CallableStatement createFunction = conn.prepareCall(
-                "CREATE OR REPLACE FUNCTION notificar_fichero() "
+                "CREATE OR REPLACE FUNCTION registrar_cambio() "
                 + "RETURNS trigger AS $$ "
+                + "DECLARE r RECORD; "
                 + "BEGIN "
-                + "PERFORM pg_notify('nuevofichero',NEW.id::text); "
-                + "RETURN NEW; "
+                + "IF current_setting('" + ChangeLog.SKIP_SETTING + "', true) = 'on' THEN "
+                + "RETURN NULL; "
+                + "END IF; "
+                + "IF TG_OP = 'DELETE' THEN r := OLD; ELSE r := NEW; END IF; "
+                + "INSERT INTO change_log "
+                + "(txid, origin, entity, operation, entity_id, parent_id, name, path, changed_at) "
+                + "VALUES (txid_current(), current_setting('application_name'), "
+                + "TG_ARGV[0], left(TG_OP, 1), r.id, r.parent_id, r.name, r.path, now()); "
+                + "PERFORM pg_notify('" + ChangeLog.CHANNEL + "', ''); "
+                + "RETURN NULL; "
                 + "END; "
                 + "$$ LANGUAGE plpgsql;");
         createFunction.execute();
         createFunction.close();
 
+        // Los cambios registrados antes de guardar la transacción se toman
+        // como de una transacción anterior a todas. Los clientes leen el
+        // registro en orden de transacción y número de secuencia.
+        CallableStatement migrateChangeLog = conn.prepareCall(
+                "UPDATE change_log SET txid = 0 WHERE txid IS NULL; "
+                + "CREATE INDEX IF NOT EXISTS change_log_txid_idx "
+                + "ON change_log (txid, seq); "
+                + "CREATE TABLE IF NOT EXISTS change_log_pruned "
+                + "(txid bigint NOT NULL, seq bigint NOT NULL); ");
+        migrateChangeLog.execute();
+        migrateChangeLog.close();
+
+        // Para saber si un fragmento sigue referenciado sin recorrer toda la
+        // tabla file_chunks.
+        CallableStatement indexChunks = conn.prepareCall(
+                "CREATE INDEX IF NOT EXISTS file_chunks_chunk_hash_idx "
+                + "ON file_chunks (chunk_hash); ");
+        indexChunks.execute();
+        indexChunks.close();
+
+        // Desde que el contenido se guarda en fragmentos, files.content puede
+        // ser nulo. hbm2ddl (update) nunca relaja las restricciones de las
+        // columnas existentes, así que se quita aquí.
+        CallableStatement relaxContent = conn.prepareCall(
+                "DO $$ BEGIN "
+                + "IF EXISTS (SELECT 1 FROM information_schema.columns "
+                + "WHERE table_name = 'files' AND column_name = 'content') THEN "
+                + "ALTER TABLE files ALTER COLUMN content DROP NOT NULL; "
+                + "END IF; "
+                + "END $$;");
+        relaxContent.execute();
+        relaxContent.close();
+
+        // El contenido de los ficheros guardado en la propia tabla files (Blob
+        // y contenido de los ficheros pequeños) pasa a file_contents. Se hace
+        // sin el trigger para no registrar como modificados todos los
+        // ficheros migrados.
+        CallableStatement migrateContent = conn.prepareCall(
+                "DROP TRIGGER IF EXISTS registrar_cambio_fichero ON files; "
+                + "DO $$ BEGIN "
+                + "IF EXISTS (SELECT 1 FROM information_schema.columns "
+                + "WHERE table_name = 'files' AND column_name = 'content') THEN "
+                + "ALTER TABLE files ADD COLUMN IF NOT EXISTS inline_data bytea; "
+                + "WITH source AS ("
+                + "SELECT id AS file_id, nextval('file_contents_id_seq') AS content_id, "
+                + "inline_data, content FROM files "
+                + "WHERE content IS NOT NULL OR inline_data IS NOT NULL), "
+                + "moved AS (INSERT INTO file_contents (id, inline_data, data) "
+                + "SELECT content_id, inline_data, content FROM source) "
+                + "UPDATE files f SET content_id = s.content_id "
+                + "FROM source s WHERE f.id = s.file_id; "
+                + "ALTER TABLE files DROP COLUMN content, DROP COLUMN inline_data; "
+                + "END IF; "
+                + "END $$;");
+        migrateContent.execute();
+        migrateContent.close();
+
+        // Los elementos guardados antes de tener la columna path la reciben a
+        // partir de sus antecesores, también sin el trigger. Los índices usan
+        // text_pattern_ops para que las búsquedas por prefijo (LIKE 'ruta%')
+        // los aprovechen sea cual sea la collation de la base de datos.
+        String separator = java.io.File.separator;
+        CallableStatement migratePaths = conn.prepareCall(
+                "DROP TRIGGER IF EXISTS registrar_cambio_directorio ON directories; "
+                + "DROP TRIGGER IF EXISTS registrar_modificacion_directorio ON directories; "
+                + "DO $$ BEGIN "
+                + "IF EXISTS (SELECT 1 FROM directories WHERE path IS NULL) "
+                + "OR EXISTS (SELECT 1 FROM files WHERE path IS NULL) THEN "
+                + "WITH RECURSIVE tree (id, path) AS ("
+                + "SELECT id, name::text FROM directories WHERE parent_id IS NULL "
+                + "UNION ALL "
+                + "SELECT d.id, CASE WHEN t.path = '" + separator + "' "
+                + "THEN t.path || d.name ELSE t.path || '" + separator + "' || d.name END "
+                + "FROM directories d JOIN tree t ON d.parent_id = t.id) "
+                + "UPDATE directories d SET path = t.path FROM tree t "
+                + "WHERE d.id = t.id AND d.path IS NULL; "
+                + "UPDATE files f SET path = CASE WHEN d.path = '" + separator + "' "
+                + "THEN d.path || f.name ELSE d.path || '" + separator + "' || f.name END "
+                + "FROM directories d WHERE f.parent_id = d.id AND f.path IS NULL; "
+                + "END IF; "
+                + "END $$; "
+                + "CREATE INDEX IF NOT EXISTS directories_path_idx "
+                + "ON directories (path text_pattern_ops); "
+                + "CREATE INDEX IF NOT EXISTS files_path_idx "
+                + "ON files (path text_pattern_ops); ");
+        migratePaths.execute();
+        migratePaths.close();
+
+        // En los directorios solo se registran las modificaciones que
+        // cambian su nombre o su posición: al modificar un fichero se
+        // recalcula el resumen agregado (tree_hash) de todos sus
+        // antecesores, y eso no interesa a los demás clientes.
         CallableStatement createTrigger = conn.prepareCall(
                 "DROP TRIGGER IF EXISTS notif_nuevo_fichero ON files; "
-                + "CREATE TRIGGER notif_nuevo_fichero "
-                + "AFTER INSERT "
+                + "DROP FUNCTION IF EXISTS notificar_fichero(); "
+                + "DROP TRIGGER IF EXISTS registrar_cambio_fichero ON files; "
+                + "CREATE TRIGGER registrar_cambio_fichero "
+                + "AFTER INSERT OR UPDATE OR DELETE "
                 + "ON files "
                 + "FOR EACH ROW "
-                + "EXECUTE PROCEDURE notificar_fichero(); ");
+                + "EXECUTE PROCEDURE registrar_cambio('" + Change.ENTITY_FILE + "'); "
+                + "DROP TRIGGER IF EXISTS registrar_cambio_directorio ON directories; "
+                + "CREATE TRIGGER registrar_cambio_directorio "
+                + "AFTER INSERT OR DELETE "
+                + "ON directories "
+                + "FOR EACH ROW "
+                + "EXECUTE PROCEDURE registrar_cambio('" + Change.ENTITY_DIRECTORY + "'); "
+                + "DROP TRIGGER IF EXISTS registrar_modificacion_directorio ON directories; "
+                + "CREATE TRIGGER registrar_modificacion_directorio "
+                + "AFTER UPDATE OF name, parent_id, path "
+                + "ON directories "
+                + "FOR EACH ROW "
+                + "WHEN (OLD.name IS DISTINCT FROM NEW.name "
+                + "OR OLD.parent_id IS DISTINCT FROM NEW.parent_id "
+                + "OR OLD.path IS DISTINCT FROM NEW.path) "
+                + "EXECUTE PROCEDURE registrar_cambio('" + Change.ENTITY_DIRECTORY + "'); ");
         createTrigger.execute();
         createTrigger.close();
 
-        conn.close(); // ¿?
+        // La conexión vuelve al pool.
+        conn.close();
     }
 
     // Variables declaration - do not modify//GEN-BEGIN:variables
@@ -0,0 +1,61 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2020 Yago Mouriño Mendaña
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.ymourino.ad05.persistence;
+
+import com.ymourino.ad05.persistence.models.File;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+
+/**
+ * Almacén del contenido de los ficheros. DBHelper solo trabaja con esta
+ * interfaz; cada implementación decide dónde y cómo se guarda el contenido.
+ *
+ * @author Yago Mouriño Mendaña
+ */
+public interface BlobStore {
+
+    /**
+     * Guarda el contenido de un fichero del disco.
+     *
+     * @param hibernateUtil
+     * @param path Ruta del fichero.
+     * @param previous Versión anterior del fichero en la base de datos, o null
+     * si es un fichero nuevo.
+     * @return El contenido guardado, que hay que asignar al fichero.
+     * @throws Exception
+     */
+    StoredContent store(IJPAUtil hibernateUtil, Path path, File previous) throws Exception;
+
+    /**
+     * Escribe el contenido de un fichero en el canal indicado. No necesita la
+     * sesión que cargó el fichero, siempre que su lista de fragmentos esté
+     * cargada.
+     *
+     * @param hibernateUtil
+     * @param file
+     * @param destination
+     * @throws Exception
+     */
+    void restore(IJPAUtil hibernateUtil, File file, WritableByteChannel destination) throws Exception;
+}
@@ -0,0 +1,76 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2020 Yago Mouriño Mendaña
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.ymourino.ad05.persistence;
+
+import java.util.Map;
+import javax.cache.Cache;
+import org.ehcache.config.CacheConfiguration;
+import org.ehcache.config.builders.CacheConfigurationBuilder;
+import org.ehcache.config.builders.ResourcePoolsBuilder;
+import org.ehcache.jsr107.Eh107Configuration;
+import org.hibernate.boot.spi.SessionFactoryOptions;
+import org.hibernate.cache.jcache.internal.JCacheRegionFactory;
+
+/**
+ * Factoría de regiones de la caché de segundo nivel (JCache con Ehcache en
+ * el propio proceso) que crea cada región con un número máximo de elementos.
+ * Cuando se llena, Ehcache descarta los elementos menos usados, así que la
+ * memoria de la caché no crece con el tamaño del árbol.
+ *
+ * @author Yago Mouriño Mendaña
+ */
+public class BoundedCacheRegionFactory extends JCacheRegionFactory {
+
+    private static final long serialVersionUID = 6143027759152370417L;
+
+    // Propiedad de Hibernate con el número máximo de elementos por región.
+    public static final String MAX_ENTRIES = "com.ymourino.ad05.cache.max_entries";
+
+    private static final long DEFAULT_MAX_ENTRIES = 10000;
+
+    private long maxEntries = DEFAULT_MAX_ENTRIES;
+
+    @Override
+    @SuppressWarnings("rawtypes")
+    protected void prepareForUse(SessionFactoryOptions settings, Map configValues) {
+        Object value = configValues.get(MAX_ENTRIES);
+
+        if (value != null) {
+            maxEntries = Long.parseLong(value.toString());
+        }
+
+        super.prepareForUse(settings, configValues);
+    }
+
+    @Override
+    protected Cache<Object, Object> createCache(String regionName) {
+        CacheConfiguration<Object, Object> configuration = CacheConfigurationBuilder
+                .newCacheConfigurationBuilder(Object.class, Object.class,
+                        ResourcePoolsBuilder.heap(maxEntries))
+                .build();
+
+        return getCacheManager().createCache(regionName,
+                Eh107Configuration.fromEhcacheCacheConfiguration(configuration));
+    }
+}
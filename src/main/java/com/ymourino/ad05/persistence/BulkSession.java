@@ -0,0 +1,115 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2020 Yago Mouriño Mendaña
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.ymourino.ad05.persistence;
+
+import org.hibernate.CacheMode;
+import org.hibernate.FlushMode;
+import org.hibernate.Session;
+
+/**
+ * Sesión para importaciones masivas. Los elementos se guardan en lotes JDBC y,
+ * cada cierto número de elementos, los cambios se vuelcan a la base de datos y
+ * se vacía la sesión, de forma que la memoria utilizada no crece con el número
+ * de elementos importados.
+ *
+ * Todos los elementos se guardan en una única transacción, que debe
+ * confirmarse con commit() antes de cerrar la sesión.
+ *
+ * @author Yago Mouriño Mendaña
+ */
+public class BulkSession implements AutoCloseable {
+
+    private final Session session;
+    private final int flushInterval;
+    private int pending = 0;
+
+    BulkSession(Session session, int batchSize, int flushInterval) {
+        this.session = session;
+        this.flushInterval = flushInterval;
+
+        session.setJdbcBatchSize(batchSize);
+        session.setHibernateFlushMode(FlushMode.MANUAL);
+        session.setCacheMode(CacheMode.IGNORE);
+        session.beginTransaction();
+    }
+
+    /**
+     * Guarda un elemento. No se propagan los cambios a los elementos
+     * relacionados que ya se hayan volcado, por lo que los padres deben
+     * guardarse antes que sus hijos.
+     *
+     * @param element
+     */
+    public void save(Object element) {
+        session.save(element);
+
+        if (++pending >= flushInterval) {
+            flush();
+        }
+    }
+
+    /**
+     * Guarda los cambios de un elemento ya guardado con save(). Si la sesión
+     * se ha vaciado desde entonces, el elemento se vuelve a asociar a ella.
+     *
+     * @param element
+     */
+    public void update(Object element) {
+        if (session.contains(element)) {
+            return;
+        }
+
+        session.update(element);
+
+        if (++pending >= flushInterval) {
+            flush();
+        }
+    }
+
+    /**
+     * Vuelca los elementos pendientes a la base de datos y vacía la sesión.
+     */
+    public void flush() {
+        session.flush();
+        session.clear();
+        pending = 0;
+    }
+
+    /**
+     * Vuelca los elementos pendientes y confirma la transacción.
+     */
+    public void commit() {
+        flush();
+        session.getTransaction().commit();
+    }
+
+    @Override
+    public void close() {
+        if (session.getTransaction().isActive()) {
+            session.getTransaction().rollback();
+        }
+
+        session.close();
+    }
+}
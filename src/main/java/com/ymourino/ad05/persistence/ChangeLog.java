@@ -0,0 +1,529 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2020 Yago Mouriño Mendaña
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.ymourino.ad05.persistence;
+
+import com.ymourino.ad05.persistence.models.Change;
+import com.ymourino.ad05.persistence.models.Directory;
+import com.ymourino.ad05.persistence.models.File;
+import com.ymourino.ad05.utils.HashUtils;
+import com.ymourino.ad05.utils.Manifest;
+import com.ymourino.ad05.utils.SyncState;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.stream.Collectors;
+import java.util.logging.Logger;
+import org.hibernate.Cache;
+import org.hibernate.Session;
+
+/**
+ * Clase con métodos estáticos para aplicar en el directorio local los cambios
+ * del registro de cambios (tabla change_log) posteriores a un cursor.
+ *
+ * El número de secuencia de un cambio se asigna cuando se escribe, no cuando
+ * se confirma su transacción, así que una transacción larga puede confirmar
+ * cambios con números menores que los ya leídos. Por eso los cambios se
+ * ordenan por transacción (txid) y número de secuencia, y solo se entregan
+ * los de transacciones anteriores a la más antigua que sigue en curso
+ * (txid_snapshot_xmin): ninguna transacción que termine después puede quedar
+ * por detrás del cursor.
+ *
+ * Las entradas antiguas se borran pasado el periodo de retención, y en la
+ * tabla change_log_pruned se apunta hasta dónde se ha borrado. Un cliente cuyo
+ * cursor quede por detrás no puede saber qué se ha perdido y vuelve a hacer
+ * la primera sincronización.
+ *
+ * @author Yago Mouriño Mendaña
+ */
+public class ChangeLog {
+
+    // Canal que usan los triggers para avisar de que hay cambios nuevos. La
+    // notificación no lleva datos: solo sirve para despertar a los clientes.
+    public static final String CHANNEL = "cambios";
+
+    // Parámetro de sesión con el que una transacción desactiva los triggers
+    // del registro de cambios (SET LOCAL, solo para esa transacción). Lo usa
+    // la importación inicial, que en su lugar escribe una única entrada.
+    public static final String SKIP_SETTING = "minidrive.skip_change_log";
+
+    private static final int BATCH_SIZE = 500;
+
+    private ChangeLog() {
+    }
+
+    /**
+     * Obtiene el cursor desde el que aplicar los cambios tras una
+     * restauración completa que empiece en este momento: las transacciones
+     * anteriores a la más antigua en curso ya han terminado, así que sus
+     * cambios estarán en lo restaurado; el resto se aplicará después desde el
+     * registro.
+     *
+     * @return
+     * @throws Exception
+     */
+    public static SyncState.Cursor getStartCursor() throws Exception {
+        long xmin = HibernateUtil.getHibernateUtil().inTransaction(ChangeLog::getOldestRunningTxid);
+        return new SyncState.Cursor(xmin, 0);
+    }
+
+    /**
+     * Borra las entradas del registro de cambios más antiguas que el número de
+     * días indicado, apuntando la posición de la última entrada borrada.
+     *
+     * @param retentionDays
+     * @throws Exception
+     */
+    public static void prune(int retentionDays) throws Exception {
+        HibernateUtil.getHibernateUtil().inTransaction((session)
+                -> session.createNativeQuery(
+                        "WITH pruned AS (DELETE FROM change_log "
+                        + "WHERE changed_at < now() - make_interval(days => :days) "
+                        + "RETURNING txid, seq) "
+                        + "INSERT INTO change_log_pruned (txid, seq) "
+                        + "SELECT txid, seq FROM pruned ORDER BY txid DESC, seq DESC LIMIT 1")
+                        .setParameter("days", retentionDays)
+                        .executeUpdate());
+    }
+
+    /**
+     * Indica si se han borrado entradas del registro de cambios posteriores
+     * al cursor, es decir, si hay cambios que ya no se pueden aplicar.
+     *
+     * @param cursor
+     * @return
+     * @throws Exception
+     */
+    public static boolean isPrunedAfter(SyncState.Cursor cursor) throws Exception {
+        return HibernateUtil.getHibernateUtil().inTransaction((session)
+                -> !session.createNativeQuery(
+                        "SELECT 1 FROM change_log_pruned WHERE (txid, seq) > (:txid, :seq) LIMIT 1")
+                        .setParameter("txid", cursor.getTxid())
+                        .setParameter("seq", cursor.getSeq())
+                        .getResultList()
+                        .isEmpty());
+    }
+
+    /**
+     * Aplica todos los cambios posteriores al cursor guardado, avanzando el
+     * cursor tras cada lote. El manifiesto local se actualiza con los
+     * elementos restaurados o eliminados y se guarda al terminar.
+     *
+     * @param rootPath Ruta del directorio local.
+     * @param state Estado local, con el cursor.
+     * @param restorePool Pool donde restaurar los ficheros en paralelo.
+     * @return True si quedan cambios ya confirmados que no se han podido
+     * aplicar porque alguna transacción anterior sigue en curso.
+     * @throws Exception
+     */
+    public static boolean applyPendingChanges(String rootPath, SyncState state,
+            ExecutorService restorePool) throws Exception {
+        SyncState.Cursor cursor = state.getCursor();
+        SyncState.Cursor next;
+        boolean applied = false;
+
+        while (!(next = applyChanges(rootPath, cursor, state.getManifest(), restorePool)).equals(cursor)) {
+            state.setCursor(next);
+            cursor = next;
+            applied = true;
+        }
+
+        if (applied) {
+            state.saveManifest();
+        }
+
+        return HibernateUtil.getHibernateUtil().inTransaction((session)
+                -> !session.createQuery("select c.seq from Change c where c.txid >= :xmin",
+                        Long.class)
+                        .setParameter("xmin", getOldestRunningTxid(session))
+                        .setMaxResults(1)
+                        .getResultList()
+                        .isEmpty());
+    }
+
+    /**
+     * Obtiene la transacción más antigua que sigue en curso en la base de
+     * datos (o la siguiente que se iniciará, si no hay ninguna). Todas las
+     * anteriores han terminado.
+     *
+     * @param session
+     * @return
+     */
+    private static long getOldestRunningTxid(Session session) {
+        return ((Number) session.createNativeQuery(
+                "SELECT txid_snapshot_xmin(txid_current_snapshot())")
+                .getSingleResult()).longValue();
+    }
+
+    /**
+     * Aplica un lote de cambios posteriores al cursor indicado.
+     *
+     * @param rootPath Ruta del directorio local.
+     * @param after Cursor (último cambio aplicado).
+     * @param manifest Manifiesto local.
+     * @param restorePool Pool donde restaurar los ficheros en paralelo.
+     * @return El cursor del último cambio aplicado.
+     * @throws Exception
+     */
+    private static SyncState.Cursor applyChanges(String rootPath, SyncState.Cursor after,
+            Manifest manifest, ExecutorService restorePool) throws Exception {
+        Path root = Paths.get(rootPath).toAbsolutePath().normalize();
+        IJPAUtil hibernateUtil = HibernateUtil.getHibernateUtil();
+
+        return hibernateUtil.inTransaction((session) -> {
+            List<Change> changes = session.createQuery(
+                    "from Change c where c.txid < :xmin "
+                    + "and (c.txid > :txid or (c.txid = :txid and c.seq > :seq)) "
+                    + "order by c.txid, c.seq",
+                    Change.class)
+                    .setParameter("xmin", getOldestRunningTxid(session))
+                    .setParameter("txid", after.getTxid())
+                    .setParameter("seq", after.getSeq())
+                    .setMaxResults(BATCH_SIZE)
+                    .getResultList();
+
+            if (changes.isEmpty()) {
+                return after;
+            }
+
+            // El cursor avanza hasta el último cambio leído, pero los cambios
+            // hechos por este mismo cliente no se aplican: ya están en disco y
+            // en su caché.
+            Change last = changes.get(changes.size() - 1);
+            String clientId = hibernateUtil.getClientId();
+            changes = changes.stream()
+                    .filter((change) -> !clientId.equals(change.getOrigin()))
+                    .collect(Collectors.toCollection(ArrayList::new));
+
+            // Una importación inicial no registra cada elemento, sino una
+            // única entrada: se restaura todo lo que falte en el disco.
+            boolean imported = changes.removeIf((change)
+                    -> Change.OPERATION_IMPORT.equals(change.getOperation()));
+
+            // Lo que está en la caché de segundo nivel puede haber cambiado
+            // en otro cliente, así que se descarta antes de leerlo.
+            if (imported) {
+                hibernateUtil.getCache().evictAllRegions();
+                DBHelper.restoreDirectoryFromDB(rootPath);
+            } else {
+                evictFromCache(hibernateUtil.getCache(), changes);
+            }
+
+            // Si un mismo elemento cambia varias veces, basta con aplicar el
+            // último cambio.
+            Map<String, Change> latest = new LinkedHashMap<>();
+
+            for (Change change : changes) {
+                String key = change.getEntity() + ":" + change.getEntityId();
+                latest.remove(key);
+                latest.put(key, change);
+            }
+
+            Set<Long> changedFiles = new LinkedHashSet<>();
+
+            for (Change change : latest.values()) {
+                boolean isFile = Change.ENTITY_FILE.equals(change.getEntity());
+
+                if (Change.OPERATION_DELETE.equals(change.getOperation())) {
+                    deleteLocal(session, root, manifest, change, isFile);
+                } else if (isFile) {
+                    changedFiles.add(change.getEntityId());
+                } else {
+                    Directory directory = session.find(Directory.class, change.getEntityId());
+
+                    if (directory != null) {
+                        Path target = Paths.get(root.toString() + directory.getPathWithName());
+                        Files.createDirectories(target);
+
+                        if (!target.equals(root)) {
+                            manifest.put(new Manifest.Entry(root.relativize(target).toString(),
+                                    true, 0, 0, null, directory.getId()));
+                        }
+                    }
+                }
+            }
+
+            // Si falla alguna restauración, el lote entero falla y el cursor no
+            // avanza, de forma que se vuelve a intentar más adelante.
+            if (!changedFiles.isEmpty()) {
+                for (Future<Void> restore : restorePool.invokeAll(
+                        prepareRestores(session, root, manifest, changedFiles))) {
+                    restore.get();
+                }
+            }
+
+            return new SyncState.Cursor(last.getTxid(), last.getSeq());
+        });
+    }
+
+    /**
+     * Quita de la caché de segundo nivel los elementos afectados por los
+     * cambios (y las colecciones de sus padres), además de todos los
+     * resultados de consultas guardados. Las escrituras de este cliente ya
+     * actualizan la caché por sí mismas; esto es lo que mantiene coherentes
+     * las cachés de los demás.
+     *
+     * @param cache
+     * @param changes
+     */
+    private static void evictFromCache(Cache cache, List<Change> changes) {
+        for (Change change : changes) {
+            if (Change.ENTITY_FILE.equals(change.getEntity())) {
+                cache.evictEntityData(File.class, change.getEntityId());
+                cache.evictCollectionData(File.class.getName() + ".chunks",
+                        change.getEntityId());
+
+                if (change.getParentId() != null) {
+                    cache.evictCollectionData(Directory.class.getName() + ".files",
+                            change.getParentId());
+                }
+            } else {
+                cache.evictEntityData(Directory.class, change.getEntityId());
+
+                if (change.getParentId() != null) {
+                    cache.evictCollectionData(Directory.class.getName() + ".directories",
+                            change.getParentId());
+                }
+            }
+        }
+
+        cache.evictQueryRegions();
+    }
+
+    /**
+     * Prepara la restauración de los ficheros nuevos o modificados. Un fichero
+     * local solo se reemplaza si es más antiguo que el de la base de datos y
+     * su contenido es distinto; si es más reciente, será el escaneo local el
+     * que suba los cambios.
+     *
+     * @param session
+     * @param root
+     * @param manifest
+     * @param ids
+     * @return Las tareas de restauración, que no necesitan la sesión.
+     * @throws Exception
+     */
+    private static List<Callable<Void>> prepareRestores(Session session, Path root,
+            Manifest manifest, Set<Long> ids) throws Exception {
+        List<File> files = session.createQuery(
+                "select distinct f from File f left join fetch f.chunks "
+                + "left join fetch f.fileContent "
+                + "where f.id in (:ids)",
+                File.class)
+                .setParameterList("ids", ids)
+                .getResultList();
+
+        List<Callable<Void>> restores = new ArrayList<>(files.size());
+
+        for (File file : files) {
+            Path target = Paths.get(root.toString() + file.getPathWithName());
+            boolean replace = false;
+
+            if (Files.exists(target)) {
+                BasicFileAttributes attributes = Files.readAttributes(target, BasicFileAttributes.class);
+                long localModified = attributes.lastModifiedTime().toMillis();
+
+                if (file.getLastModified() == null
+                        || localModified >= file.getLastModified()
+                        || (attributes.size() == file.getSize()
+                        && file.getDigest() != null
+                        && file.getDigest().equals(HashUtils.digest(target)))) {
+                    continue;
+                }
+
+                replace = true;
+            }
+
+            // La fecha de modificación de los ficheros restaurados es la de la
+            // base de datos, así que se conoce de antemano su entrada.
+            Manifest.Entry restored = file.getLastModified() != null
+                    ? new Manifest.Entry(root.relativize(target).toString(), false,
+                            file.getSize(), file.getLastModified(), file.getDigest(), file.getId())
+                    : null;
+
+            if (file.getBlobContent() != null) {
+                // Los ficheros antiguos (Blob) se leen con la sesión.
+                DBHelper.restoreFileFromDB(file, root);
+
+                if (restored != null) {
+                    manifest.put(restored);
+                }
+            } else {
+                // La lista de fragmentos ya está cargada, así que el fichero se
+                // puede restaurar sin la sesión.
+                boolean replaceExisting = replace;
+
+                restores.add(() -> {
+                    DBHelper.restoreFileFromDB(target, file, replaceExisting);
+
+                    if (restored != null) {
+                        manifest.put(restored);
+                    }
+
+                    return null;
+                });
+            }
+        }
+
+        return restores;
+    }
+
+    /**
+     * Borra del directorio local el elemento eliminado en la base de datos.
+     * La ruta es la guardada en el cambio o, en los cambios registrados antes
+     * de guardarla, se obtiene del directorio padre y el nombre; si el padre
+     * también se ha eliminado, el borrado del padre ya se encarga de todo su
+     * contenido.
+     *
+     * Solo se borra lo que el manifiesto conoce con el mismo identificador y
+     * no se ha modificado desde la última sincronización. Lo demás se
+     * conserva (y se quita del manifiesto, de forma que el escaneo local lo
+     * vuelva a subir como nuevo).
+     *
+     * @param session
+     * @param root
+     * @param manifest
+     * @param change
+     * @param isFile
+     * @throws Exception
+     */
+    private static void deleteLocal(Session session, Path root, Manifest manifest,
+            Change change, boolean isFile) throws Exception {
+        Path target;
+
+        if (change.getPath() != null) {
+            target = Paths.get(root.toString() + change.getPath());
+        } else {
+            if (change.getParentId() == null || change.getName() == null) {
+                return;
+            }
+
+            Directory parent = session.find(Directory.class, change.getParentId());
+
+            if (parent == null) {
+                return;
+            }
+
+            target = Paths.get(root.toString() + parent.getPathWithName())
+                    .resolve(change.getName());
+        }
+
+        target = target.normalize();
+
+        if (target.equals(root) || !target.startsWith(root)
+                || SyncState.isStatePath(root.relativize(target).toString())) {
+            return;
+        }
+
+        // Si en la ruta hay ahora otro elemento (por ejemplo, uno creado
+        // después con el mismo nombre), no se toca.
+        Manifest.Entry known = manifest.get(root.relativize(target).toString());
+
+        if (known == null || known.isDirectory() == isFile
+                || known.getId() != change.getEntityId()) {
+            if (Files.exists(target, LinkOption.NOFOLLOW_LINKS)) {
+                Logger.getLogger(ChangeLog.class.getName()).log(Level.WARNING,
+                        "No se borra {0}: no corresponde al elemento eliminado", target);
+            }
+
+            return;
+        }
+
+        if (isFile) {
+            deleteIfUnchanged(root, manifest, target);
+            manifest.remove(root.relativize(target).toString());
+        } else if (Files.isDirectory(target, LinkOption.NOFOLLOW_LINKS)) {
+            Files.walkFileTree(target, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                    deleteIfUnchanged(root, manifest, file);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                    if (exc != null) {
+                        throw exc;
+                    }
+
+                    // Los directorios que conservan algo no se borran.
+                    try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+                        if (!entries.iterator().hasNext()) {
+                            Files.delete(dir);
+                        }
+                    }
+
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+
+            manifest.removeTree(root.relativize(target).toString());
+        } else {
+            manifest.removeTree(root.relativize(target).toString());
+        }
+    }
+
+    /**
+     * Borra un fichero local si está en el manifiesto y no se ha modificado
+     * desde la última sincronización. Si no, se conserva y se deja constancia
+     * en el log.
+     *
+     * @param root
+     * @param manifest
+     * @param file
+     * @throws IOException
+     */
+    private static void deleteIfUnchanged(Path root, Manifest manifest, Path file) throws IOException {
+        if (!Files.exists(file, LinkOption.NOFOLLOW_LINKS)) {
+            return;
+        }
+
+        Manifest.Entry known = manifest.get(root.relativize(file).toString());
+        BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class,
+                LinkOption.NOFOLLOW_LINKS);
+
+        if (known != null && attributes.isRegularFile()
+                && known.matches(attributes.size(), attributes.lastModifiedTime().toMillis())) {
+            Files.delete(file);
+        } else {
+            Logger.getLogger(ChangeLog.class.getName()).log(Level.WARNING,
+                    "No se borra {0}: no está sincronizado o se ha modificado", file);
+        }
+    }
+}
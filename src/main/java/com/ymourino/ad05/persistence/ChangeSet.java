@@ -0,0 +1,161 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2020 Yago Mouriño Mendaña
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.ymourino.ad05.persistence;
+
+import com.ymourino.ad05.persistence.models.Directory;
+import com.ymourino.ad05.persistence.models.IDirectoryEntry;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import org.hibernate.Session;
+
+/**
+ * Conjunto de cambios (elementos nuevos, modificados y eliminados) de una
+ * unidad de trabajo sobre el árbol de directorios.
+ *
+ * Al crearlo, la sesión pasa a cargar los elementos en modo de solo lectura,
+ * por lo que al hacer flush Hibernate no compara el estado de todo lo que se
+ * ha cargado, sino solo el de los elementos marcados con modifying(). Los
+ * elementos nuevos y eliminados se guardan y se borran de forma explícita, sin
+ * propagar la operación por todo el árbol desde la raíz. Así, el coste de
+ * guardar los cambios depende del número de cambios y no del tamaño del árbol.
+ *
+ * @author Yago Mouriño Mendaña
+ */
+public class ChangeSet {
+
+    private final Session session;
+    private final List<IDirectoryEntry> added = new ArrayList<>();
+    private final Set<IDirectoryEntry> removed = Collections.newSetFromMap(new IdentityHashMap<>());
+    private final Set<Directory> touched = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    /**
+     * Debe crearse antes de cargar ningún elemento en la sesión.
+     *
+     * @param session
+     */
+    public ChangeSet(Session session) {
+        this.session = session;
+        session.setDefaultReadOnly(true);
+    }
+
+    /**
+     * Registra un elemento nuevo, ya añadido al árbol. Los directorios
+     * intermedios que se hayan creado para añadirlo también se guardarán.
+     *
+     * @param entry
+     */
+    public void added(IDirectoryEntry entry) {
+        added.add(entry);
+        touch(entry.getParent());
+
+        if (entry instanceof Directory) {
+            touch((Directory) entry);
+        }
+    }
+
+    /**
+     * Registra un elemento eliminado, ya quitado del árbol.
+     *
+     * @param entry
+     */
+    public void removed(IDirectoryEntry entry) {
+        if (entry != null) {
+            removed.add(entry);
+            touch(entry.getParent());
+        }
+    }
+
+    /**
+     * Permite modificar un elemento cargado. Debe llamarse antes de hacer
+     * ningún cambio en él: los cambios hechos mientras está en modo de solo
+     * lectura se pierden.
+     *
+     * @param entity
+     */
+    public void modifying(Object entity) {
+        if (session.contains(entity) && session.isReadOnly(entity)) {
+            session.setReadOnly(entity, false);
+        }
+
+        if (entity instanceof IDirectoryEntry && !(entity instanceof Directory)) {
+            touch(((IDirectoryEntry) entity).getParent());
+        }
+    }
+
+    /**
+     * Marca un directorio cuyo contenido ha cambiado (o debe comprobarse) para
+     * recalcular su resumen agregado.
+     *
+     * @param directory
+     */
+    public void touch(Directory directory) {
+        if (directory != null) {
+            touched.add(directory);
+        }
+    }
+
+    public Set<Directory> getTouched() {
+        return touched;
+    }
+
+    public boolean isRemoved(IDirectoryEntry entry) {
+        return removed.contains(entry);
+    }
+
+    public boolean isEmpty() {
+        return added.isEmpty() && removed.isEmpty() && touched.isEmpty();
+    }
+
+    /**
+     * Guarda los elementos nuevos (con sus antecesores que todavía no estén
+     * guardados, de más externo a más interno), borra los eliminados y vuelca
+     * los cambios a la base de datos.
+     */
+    public void apply() {
+        for (IDirectoryEntry entry : removed) {
+            session.delete(entry);
+        }
+
+        for (IDirectoryEntry entry : added) {
+            Deque<IDirectoryEntry> pending = new ArrayDeque<>();
+
+            for (IDirectoryEntry current = entry;
+                    current != null && !session.contains(current) && !removed.contains(current);
+                    current = current.getParent()) {
+                pending.push(current);
+            }
+
+            while (!pending.isEmpty()) {
+                session.persist(pending.pop());
+            }
+        }
+
+        session.flush();
+    }
+}
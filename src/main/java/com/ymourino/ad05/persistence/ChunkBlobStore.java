@@ -0,0 +1,52 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2020 Yago Mouriño Mendaña
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.ymourino.ad05.persistence;
+
+import com.ymourino.ad05.persistence.models.File;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashSet;
+
+/**
+ * Guarda el contenido de los ficheros en fragmentos deduplicados (ver
+ * ChunkStore). Al guardar una nueva versión, los fragmentos de la anterior no
+ * se vuelven a consultar ni a subir.
+ *
+ * @author Yago Mouriño Mendaña
+ */
+public class ChunkBlobStore implements BlobStore {
+
+    @Override
+    public StoredContent store(IJPAUtil hibernateUtil, Path path, File previous) throws Exception {
+        return ChunkStore.store(hibernateUtil, path, previous != null
+                ? new HashSet<>(previous.getChunks())
+                : Collections.emptySet());
+    }
+
+    @Override
+    public void restore(IJPAUtil hibernateUtil, File file, WritableByteChannel destination) throws Exception {
+        ChunkStore.restore(hibernateUtil, file.getChunks(), destination);
+    }
+}
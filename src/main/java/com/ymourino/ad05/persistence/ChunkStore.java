@@ -0,0 +1,340 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2020 Yago Mouriño Mendaña
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.ymourino.ad05.persistence;
+
+import com.ymourino.ad05.utils.Compression;
+import com.ymourino.ad05.utils.Config;
+import com.ymourino.ad05.utils.ConfigBuilder;
+import com.ymourino.ad05.utils.FastCDC;
+import com.ymourino.ad05.utils.HashUtils;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.hibernate.StatelessSession;
+import org.hibernate.Transaction;
+
+/**
+ * Clase con métodos estáticos para guardar el contenido de los ficheros en la
+ * base de datos dividido en fragmentos (tabla chunks) y para recuperarlo.
+ *
+ * Cada fragmento se identifica por su resumen, por lo que solo se envían a la
+ * base de datos los fragmentos que todavía no existen en ella. Como los cortes
+ * dependen del contenido, al modificar una parte de un fichero el resto de sus
+ * fragmentos no cambia: al guardar una nueva versión solo se suben (y se
+ * consultan) los fragmentos que no estaban en la anterior.
+ *
+ * Los fragmentos se comprimen uno a uno al subirlos (ver Compression), de
+ * forma que la memoria necesaria sigue limitada por el tamaño de los lotes.
+ *
+ * Un fragmento puede quedar sin referencias al modificar o eliminar los
+ * ficheros que lo usaban, o si falla la operación que lo subió;
+ * deleteUnreferenced los borra.
+ *
+ * @author Yago Mouriño Mendaña
+ */
+public class ChunkStore {
+
+    // Número de fragmentos que se comprueban, insertan o recuperan en cada
+    // consulta. Limita la memoria utilizada a BATCH_SIZE * FastCDC.MAX_SIZE.
+    private static final int BATCH_SIZE = 32;
+
+    // Margen (en minutos) desde que un fragmento se guarda o se reutiliza
+    // hasta que se puede borrar si nadie lo referencia. Cubre el tiempo entre
+    // que se sube el contenido de un fichero y se guarda su lista de
+    // fragmentos, que se hace en otra transacción.
+    private static final int UNREFERENCED_GRACE_MINUTES = 60;
+
+    // Número de fragmentos que se intentan borrar en cada sentencia al retirar
+    // los que ha subido una importación fallida.
+    private static final int DELETE_BATCH_SIZE = 1000;
+
+    private ChunkStore() {
+    }
+
+    /**
+     * Divide un fichero en fragmentos y guarda en la base de datos los que no
+     * existan todavía.
+     *
+     * @param hibernateUtil
+     * @param path Ruta del fichero.
+     * @return La lista ordenada de fragmentos del fichero, junto con su tamaño
+     * y su resumen.
+     * @throws Exception
+     */
+    public static StoredContent store(IJPAUtil hibernateUtil, Path path) throws Exception {
+        return store(hibernateUtil, path, Collections.emptySet());
+    }
+
+    /**
+     * Divide un fichero en fragmentos y guarda en la base de datos los que no
+     * existan todavía, sin consultar siquiera los que ya se sabe que existen
+     * (los de la versión anterior del fichero).
+     *
+     * @param hibernateUtil
+     * @param path Ruta del fichero.
+     * @param knownChunks Fragmentos que ya están en la base de datos.
+     * @return La lista ordenada de fragmentos del fichero, junto con su tamaño
+     * y su resumen.
+     * @throws Exception
+     */
+    public static StoredContent store(IJPAUtil hibernateUtil, Path path,
+            Set<String> knownChunks) throws Exception {
+        MessageDigest fileDigest = HashUtils.newMessageDigest();
+        List<String> chunks = new ArrayList<>();
+        Map<String, byte[]> pending = new LinkedHashMap<>();
+        Encoder encoder = new Encoder(ConfigBuilder.getConfig().getApp());
+        long size = 0;
+
+        try (InputStream is = Files.newInputStream(path);
+                StatelessSession session = hibernateUtil.openStatelessSession()) {
+            FastCDC chunker = new FastCDC(is);
+            byte[] chunk;
+
+            while ((chunk = chunker.nextChunk()) != null) {
+                fileDigest.update(chunk);
+                size += chunk.length;
+
+                String hash = HashUtils.toHex(HashUtils.newMessageDigest().digest(chunk));
+                chunks.add(hash);
+
+                if (knownChunks.contains(hash)) {
+                    continue;
+                }
+
+                pending.putIfAbsent(hash, chunk);
+
+                if (pending.size() >= BATCH_SIZE) {
+                    savePending(session, encoder, pending);
+                }
+            }
+
+            savePending(session, encoder, pending);
+        }
+
+        return new StoredContent(HashUtils.toHex(fileDigest.digest()), size, chunks);
+    }
+
+    /**
+     * Escribe en el canal indicado el contenido formado por los fragmentos de
+     * la lista, en orden.
+     *
+     * @param hibernateUtil
+     * @param chunks Lista ordenada de resúmenes de los fragmentos.
+     * @param destination
+     * @throws Exception
+     */
+    public static void restore(IJPAUtil hibernateUtil, List<String> chunks,
+            WritableByteChannel destination) throws Exception {
+        if (chunks.isEmpty()) {
+            return;
+        }
+
+        try (StatelessSession session = hibernateUtil.openStatelessSession()) {
+            for (int i = 0; i < chunks.size(); i += BATCH_SIZE) {
+                List<String> batch = chunks.subList(i, Math.min(i + BATCH_SIZE, chunks.size()));
+                Map<String, byte[]> data = new HashMap<>();
+
+                List<Object[]> rows = session.createQuery(
+                        "select c.hash, c.codec, c.size, c.data from Chunk c "
+                        + "where c.hash in (:hashes)",
+                        Object[].class)
+                        .setParameterList("hashes", batch)
+                        .getResultList();
+
+                for (Object[] row : rows) {
+                    data.put((String) row[0], Compression.decompress(
+                            (Short) row[1], (byte[]) row[3], (Integer) row[2]));
+                }
+
+                for (String hash : batch) {
+                    byte[] chunk = data.get(hash);
+
+                    if (chunk == null) {
+                        throw new IOException("No existe el fragmento '" + hash + "'.");
+                    }
+
+                    ByteBuffer buffer = ByteBuffer.wrap(chunk);
+
+                    while (buffer.hasRemaining()) {
+                        destination.write(buffer);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Borra los fragmentos que ningún fichero referencia y que no se han
+     * guardado ni reutilizado en el margen de UNREFERENCED_GRACE_MINUTES.
+     *
+     * @param hibernateUtil
+     * @return El número de fragmentos borrados.
+     * @throws Exception
+     */
+    public static int deleteUnreferenced(IJPAUtil hibernateUtil) throws Exception {
+        return hibernateUtil.inTransaction((session)
+                -> session.createNativeQuery(
+                        "delete from chunks c "
+                        + "where c.stored_at < now() - make_interval(mins => :grace) "
+                        + "and not exists (select 1 from file_chunks fc "
+                        + "where fc.chunk_hash = c.hash)")
+                        .setParameter("grace", UNREFERENCED_GRACE_MINUTES)
+                        .executeUpdate());
+    }
+
+    /**
+     * Borra, de entre los fragmentos indicados, los que ningún fichero
+     * referencia, sin esperar al margen de UNREFERENCED_GRACE_MINUTES. Sirve
+     * para retirar lo que ha subido una operación que no ha llegado a
+     * confirmarse.
+     *
+     * @param hibernateUtil
+     * @param hashes Resúmenes de los fragmentos.
+     * @return El número de fragmentos borrados.
+     * @throws Exception
+     */
+    public static int deleteUnreferenced(IJPAUtil hibernateUtil, Collection<String> hashes)
+            throws Exception {
+        List<String> pending = new ArrayList<>(hashes);
+        int deleted = 0;
+
+        for (int i = 0; i < pending.size(); i += DELETE_BATCH_SIZE) {
+            List<String> batch = pending.subList(i, Math.min(i + DELETE_BATCH_SIZE, pending.size()));
+
+            deleted += hibernateUtil.inTransaction((session)
+                    -> session.createNativeQuery(
+                            "delete from chunks c "
+                            + "where c.hash in (:hashes) "
+                            + "and not exists (select 1 from file_chunks fc "
+                            + "where fc.chunk_hash = c.hash)")
+                            .setParameterList("hashes", batch)
+                            .executeUpdate());
+        }
+
+        return deleted;
+    }
+
+    /**
+     * Guarda en la base de datos los fragmentos pendientes que no existan ya
+     * en ella, y vacía la lista de pendientes.
+     *
+     * @param session
+     * @param encoder Compresor de los fragmentos del fichero actual.
+     * @param pending
+     */
+    private static void savePending(StatelessSession session, Encoder encoder,
+            Map<String, byte[]> pending) {
+        if (pending.isEmpty()) {
+            return;
+        }
+
+        Transaction transaction = session.beginTransaction();
+
+        try {
+            // Los fragmentos que ya existen se marcan como reutilizados, de
+            // forma que no se borren antes de que el fichero los referencie.
+            List<?> existing = session.createNativeQuery(
+                    "update chunks set stored_at = now() "
+                    + "where hash in (:hashes) returning hash")
+                    .setParameterList("hashes", pending.keySet())
+                    .getResultList();
+
+            existing.forEach(pending::remove);
+
+            // Otro cliente podría insertar el mismo fragmento a la vez, por lo
+            // que se ignoran los conflictos de clave primaria.
+            for (Map.Entry<String, byte[]> chunk : pending.entrySet()) {
+                byte[] compressed = encoder.compress(chunk.getValue());
+
+                session.createNativeQuery(
+                        "insert into chunks (hash, size, codec, data) "
+                        + "values (:hash, :size, :codec, :data) "
+                        + "on conflict (hash) do nothing")
+                        .setParameter("hash", chunk.getKey())
+                        .setParameter("size", chunk.getValue().length)
+                        .setParameter("codec", compressed != null
+                                ? encoder.codec
+                                : Compression.CODEC_NONE)
+                        .setParameter("data", compressed != null
+                                ? compressed
+                                : chunk.getValue())
+                        .executeUpdate();
+            }
+
+            transaction.commit();
+        } catch (RuntimeException ex) {
+            transaction.rollback();
+            throw ex;
+        }
+
+        pending.clear();
+    }
+
+    /**
+     * Compresor de los fragmentos de un fichero. El primer fragmento que se
+     * sube sirve de muestra: si no se puede comprimir (imágenes, vídeos,
+     * ficheros ya comprimidos...), no se intenta con el resto del fichero.
+     */
+    private static class Encoder {
+
+        private short codec;
+        private final int level;
+        private boolean sampled = false;
+
+        Encoder(Config.App app) {
+            this.codec = Compression.codecFromName(app.getCompression());
+            this.level = app.getCompressionLevel();
+        }
+
+        /**
+         * @param data
+         * @return Los datos comprimidos, o null si se deben guardar tal cual.
+         */
+        byte[] compress(byte[] data) {
+            byte[] compressed = Compression.compress(codec, level, data);
+
+            if (!sampled) {
+                sampled = true;
+
+                if (compressed == null) {
+                    codec = Compression.CODEC_NONE;
+                }
+            }
+
+            return compressed;
+        }
+    }
+}
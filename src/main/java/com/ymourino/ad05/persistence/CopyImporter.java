@@ -0,0 +1,472 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2020 Yago Mouriño Mendaña
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.ymourino.ad05.persistence;
+
+import com.ymourino.ad05.persistence.models.Change;
+import com.ymourino.ad05.persistence.models.Directory;
+import com.ymourino.ad05.utils.HashUtils;
+import com.ymourino.ad05.utils.SyncState;
+import com.ymourino.ad05.utils.TreeHash;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.sql.Connection;
+import java.sql.Statement;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.PGCopyOutputStream;
+
+/**
+ * Importación inicial de un directorio mediante COPY de PostgreSQL.
+ *
+ * Los directorios, los ficheros y sus listas de fragmentos se envían como
+ * filas de texto (CSV) a una tabla temporal, con un único COPY que se va
+ * escribiendo según se recorre el árbol. Al terminar, unas pocas sentencias
+ * asignan los identificadores con las secuencias y pasan todas las filas a
+ * directories, files, file_contents y file_chunks de una vez. Así se evita el
+ * coste de enviar una sentencia por cada elemento.
+ *
+ * Durante la importación los triggers no registran cada elemento en
+ * change_log; en su lugar se escribe una única entrada sobre el directorio
+ * raíz, y los demás clientes restauran lo que les falte.
+ *
+ * El contenido de los ficheros se sube en paralelo en un pool de hilos
+ * mientras el recorrido continúa. La fila de un fichero se escribe cuando su
+ * contenido ya está guardado, y la de un directorio cuando se han escrito
+ * todos sus ficheros (para poder calcular su resumen agregado).
+ *
+ * Si la importación falla, se borran los fragmentos que ha subido y que no
+ * usa ningún fichero.
+ *
+ * @author Yago Mouriño Mendaña
+ */
+public class CopyImporter {
+
+    // Número máximo de ficheros cuyo contenido se está subiendo (o cuya fila
+    // falta por escribir) en cada momento. Limita la memoria utilizada.
+    private static final int MAX_IN_FLIGHT = 256;
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    // Tipo de cada fila de la tabla temporal.
+    private static final String KIND_DIRECTORY = "D";
+    private static final String KIND_FILE = "F";
+    private static final String KIND_CHUNK = "C";
+
+    private static final String CREATE_STAGING_TABLE
+            = "CREATE TEMP TABLE import_entries ("
+            + "kind char(1) NOT NULL, "
+            + "local_id bigint NOT NULL, "
+            + "parent_local_id bigint, "
+            + "name text, "
+            + "path text, "
+            + "size bigint, "
+            + "last_modified bigint, "
+            + "digest varchar(64), "
+            + "tree_hash varchar(64), "
+            + "position integer, "
+            + "chunk_hash varchar(64), "
+            + "inline_data bytea"
+            + ") ON COMMIT DROP";
+
+    // Los triggers no registran cada fila importada: la transacción deja una
+    // única entrada en change_log, con la que los demás clientes restauran
+    // todo el árbol.
+    private static final String SKIP_CHANGE_LOG
+            = "SET LOCAL " + ChangeLog.SKIP_SETTING + " = 'on'";
+
+    private static final String[] LOG_IMPORT = {
+        "INSERT INTO change_log "
+        + "(txid, origin, entity, operation, entity_id, name, path, changed_at) "
+        + "SELECT txid_current(), current_setting('application_name'), "
+        + "'" + Change.ENTITY_DIRECTORY + "', '" + Change.OPERATION_IMPORT + "', "
+        + "id, name, path, now() "
+        + "FROM directories WHERE parent_id IS NULL",
+        "SELECT pg_notify('" + ChangeLog.CHANNEL + "', '')"
+    };
+
+    private static final String COPY_STAGING_TABLE
+            = "COPY import_entries (kind, local_id, parent_local_id, name, path, size, "
+            + "last_modified, digest, tree_hash, position, chunk_hash, inline_data) "
+            + "FROM STDIN WITH (FORMAT csv)";
+
+    // Los identificadores se obtienen de las mismas secuencias que usa
+    // Hibernate. Cada valor de una secuencia reserva un bloque distinto, por
+    // lo que no coinciden con los que Hibernate asigne después.
+    private static final String[] MERGE_STAGING_TABLE = {
+        "ANALYZE import_entries",
+        "CREATE TEMP TABLE import_ids ON COMMIT DROP AS "
+        + "SELECT kind, local_id, CASE kind "
+        + "WHEN '" + KIND_DIRECTORY + "' THEN nextval('directories_id_seq') "
+        + "ELSE nextval('files_id_seq') END AS id "
+        + "FROM import_entries "
+        + "WHERE kind IN ('" + KIND_DIRECTORY + "', '" + KIND_FILE + "')",
+        "INSERT INTO directories (id, parent_id, name, path, tree_hash) "
+        + "SELECT i.id, p.id, e.name, e.path, e.tree_hash "
+        + "FROM import_entries e "
+        + "JOIN import_ids i ON i.kind = e.kind AND i.local_id = e.local_id "
+        + "LEFT JOIN import_ids p "
+        + "ON p.kind = '" + KIND_DIRECTORY + "' AND p.local_id = e.parent_local_id "
+        + "WHERE e.kind = '" + KIND_DIRECTORY + "'",
+        "CREATE TEMP TABLE import_contents ON COMMIT DROP AS "
+        + "SELECT local_id, nextval('file_contents_id_seq') AS id, inline_data "
+        + "FROM import_entries "
+        + "WHERE kind = '" + KIND_FILE + "' AND inline_data IS NOT NULL",
+        "INSERT INTO file_contents (id, inline_data) "
+        + "SELECT id, inline_data FROM import_contents",
+        "INSERT INTO files (id, parent_id, name, path, size, lastModified, digest, content_id) "
+        + "SELECT i.id, p.id, e.name, e.path, e.size, e.last_modified, e.digest, c.id "
+        + "FROM import_entries e "
+        + "JOIN import_ids i ON i.kind = e.kind AND i.local_id = e.local_id "
+        + "JOIN import_ids p "
+        + "ON p.kind = '" + KIND_DIRECTORY + "' AND p.local_id = e.parent_local_id "
+        + "LEFT JOIN import_contents c ON c.local_id = e.local_id "
+        + "WHERE e.kind = '" + KIND_FILE + "'",
+        "INSERT INTO file_chunks (file_id, position, chunk_hash) "
+        + "SELECT i.id, e.position, e.chunk_hash "
+        + "FROM import_entries e "
+        + "JOIN import_ids i ON i.kind = '" + KIND_FILE + "' AND i.local_id = e.local_id "
+        + "WHERE e.kind = '" + KIND_CHUNK + "'"
+    };
+
+    private final IJPAUtil hibernateUtil;
+    private final BlobStore blobStore;
+    private final Path normalizedRootPath;
+    private final ExecutorService contentPool;
+    private final Writer writer;
+
+    // Rama que se está recorriendo y ficheros cuya fila falta por escribir,
+    // en el orden en que se han encontrado.
+    private final Deque<DirectoryState> parents = new ArrayDeque<>();
+    private final Deque<PendingFile> pending = new ArrayDeque<>();
+
+    // Fragmentos de los ficheros cuyo contenido ya se ha guardado, para
+    // poder borrarlos si la importación falla.
+    private final Set<String> storedChunks = new HashSet<>();
+
+    private long nextDirectoryId = 1;
+    private long nextFileId = 1;
+
+    private CopyImporter(IJPAUtil hibernateUtil, BlobStore blobStore, Path normalizedRootPath,
+            ExecutorService contentPool, Writer writer) {
+        this.hibernateUtil = hibernateUtil;
+        this.blobStore = blobStore;
+        this.normalizedRootPath = normalizedRootPath;
+        this.contentPool = contentPool;
+        this.writer = writer;
+    }
+
+    /**
+     * Importa todo un directorio a la base de datos, que debe estar vacía.
+     * Todas las filas se guardan en una única transacción.
+     *
+     * @param hibernateUtil
+     * @param blobStore Almacén donde guardar el contenido de los ficheros.
+     * @param normalizedRootPath Ruta normalizada del directorio raíz.
+     * @param threads Número de ficheros cuyo contenido se sube en paralelo.
+     * @throws Exception
+     */
+    public static void importDirectory(IJPAUtil hibernateUtil, BlobStore blobStore,
+            Path normalizedRootPath, int threads) throws Exception {
+        try (Connection connection = hibernateUtil.getDataSource().getConnection()) {
+            connection.setAutoCommit(false);
+            CopyImporter importer = null;
+
+            try {
+                try (Statement statement = connection.createStatement()) {
+                    statement.execute(SKIP_CHANGE_LOG);
+                    statement.execute(CREATE_STAGING_TABLE);
+                }
+
+                ExecutorService contentPool = Executors.newFixedThreadPool(threads);
+
+                // Al cerrar el flujo termina el COPY.
+                try (Writer writer = new BufferedWriter(new OutputStreamWriter(
+                        new PGCopyOutputStream(connection.unwrap(PGConnection.class),
+                                COPY_STAGING_TABLE, COPY_BUFFER_SIZE),
+                        StandardCharsets.UTF_8))) {
+                    importer = new CopyImporter(hibernateUtil, blobStore, normalizedRootPath,
+                            contentPool, writer);
+                    importer.walk();
+                } finally {
+                    contentPool.shutdownNow();
+                }
+
+                try (Statement statement = connection.createStatement()) {
+                    for (String sql : MERGE_STAGING_TABLE) {
+                        statement.execute(sql);
+                    }
+
+                    for (String sql : LOG_IMPORT) {
+                        statement.execute(sql);
+                    }
+                }
+
+                connection.commit();
+            } catch (Exception ex) {
+                connection.rollback();
+
+                if (importer != null) {
+                    importer.deleteStoredChunks();
+                }
+
+                throw ex;
+            }
+        }
+
+        // Hibernate no sabe nada de las filas insertadas, así que se descarta
+        // lo que tenga en la caché (por ejemplo, que no había directorio raíz).
+        hibernateUtil.getCache().evictAllRegions();
+    }
+
+    /**
+     * Recorre el árbol escribiendo las filas de la tabla temporal.
+     *
+     * @throws IOException
+     */
+    private void walk() throws IOException {
+        Files.walkFileTree(normalizedRootPath, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                if (SyncState.isStatePath(normalizedRootPath.relativize(dir).toString())) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+
+                DirectoryState parent = parents.peek();
+                String name = parent == null
+                        ? java.io.File.separator
+                        : dir.getFileName().toString();
+
+                parents.push(new DirectoryState(nextDirectoryId++, parent, name,
+                        parent == null ? name : Directory.joinPath(parent.path, name)));
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                if (attrs.isRegularFile() && !DBHelper.isTemporaryFile(file)) {
+                    DirectoryState parent = parents.peek();
+                    String name = file.getFileName().toString();
+
+                    pending.add(new PendingFile(nextFileId++, parent, name,
+                            Directory.joinPath(parent.path, name),
+                            attrs.lastModifiedTime().toMillis(),
+                            contentPool.submit(() -> blobStore.store(hibernateUtil, file, null))));
+                    parent.pending++;
+
+                    while (pending.size() > MAX_IN_FLIGHT) {
+                        writeNextFile();
+                    }
+                }
+
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                if (exc != null) {
+                    throw exc;
+                }
+
+                DirectoryState directory = parents.pop();
+
+                while (directory.pending > 0) {
+                    writeNextFile();
+                }
+
+                String treeHash = directory.hash.build();
+                writeRow(KIND_DIRECTORY, directory.id,
+                        directory.parent != null ? directory.parent.id : null,
+                        directory.name, directory.path, null, null, null, treeHash,
+                        null, null, null);
+
+                if (directory.parent != null) {
+                    directory.parent.hash.addDirectory(directory.name, treeHash);
+                }
+
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * Espera a que se guarde el contenido del fichero pendiente más antiguo y
+     * escribe su fila y las de sus fragmentos.
+     *
+     * @throws IOException
+     */
+    private void writeNextFile() throws IOException {
+        PendingFile file = pending.poll();
+        StoredContent content;
+
+        try {
+            content = file.content.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException(ex);
+        } catch (ExecutionException ex) {
+            throw new IOException(ex.getCause());
+        }
+
+        storedChunks.addAll(content.getChunks());
+
+        writeRow(KIND_FILE, file.id, file.parent.id, file.name, file.path,
+                content.getSize(), file.lastModified, content.getDigest(), null,
+                null, null, content.getInlineData());
+
+        List<String> chunks = content.getChunks();
+
+        for (int i = 0; i < chunks.size(); i++) {
+            writeRow(KIND_CHUNK, file.id, null, null, null, null, null, null, null,
+                    i, chunks.get(i), null);
+        }
+
+        file.parent.hash.addFile(file.name, content.getSize(), content.getDigest());
+        file.parent.pending--;
+    }
+
+    /**
+     * Borra los fragmentos que ha subido la importación y que ningún fichero
+     * referencia, ya que el contenido se guarda en transacciones propias que
+     * no se deshacen con la importación. Los de las subidas que se hayan
+     * interrumpido a medias no se conocen; se borrarán, como cualquier otro
+     * fragmento sin referencias, pasado el margen de ChunkStore.
+     */
+    private void deleteStoredChunks() {
+        try {
+            contentPool.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+
+        for (PendingFile file : pending) {
+            if (file.content.isDone() && !file.content.isCancelled()) {
+                try {
+                    storedChunks.addAll(file.content.get().getChunks());
+                } catch (InterruptedException | ExecutionException ex) {
+                    // La subida ha fallado: no se sabe qué fragmentos guardó.
+                }
+            }
+        }
+
+        try {
+            ChunkStore.deleteUnreferenced(hibernateUtil, storedChunks);
+        } catch (Exception ex) {
+            Logger.getLogger(CopyImporter.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+
+    /**
+     * Escribe una fila en formato CSV. Los valores nulos se dejan vacíos, los
+     * textos van entre comillas (para distinguir la cadena vacía de null) y
+     * los bytes se escriben en hexadecimal.
+     *
+     * @param values
+     * @throws IOException
+     */
+    private void writeRow(Object... values) throws IOException {
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) {
+                writer.write(',');
+            }
+
+            Object value = values[i];
+
+            if (value instanceof String) {
+                writer.write('"');
+                writer.write(((String) value).replace("\"", "\"\""));
+                writer.write('"');
+            } else if (value instanceof byte[]) {
+                writer.write("\\x");
+                writer.write(HashUtils.toHex((byte[]) value));
+            } else if (value != null) {
+                writer.write(value.toString());
+            }
+        }
+
+        writer.write('\n');
+    }
+
+    /**
+     * Directorio de la rama que se está recorriendo.
+     */
+    private static class DirectoryState {
+
+        private final long id;
+        private final DirectoryState parent;
+        private final String name;
+        private final String path;
+        private final TreeHash hash = new TreeHash();
+
+        // Ficheros del directorio cuya fila falta por escribir.
+        private int pending = 0;
+
+        DirectoryState(long id, DirectoryState parent, String name, String path) {
+            this.id = id;
+            this.parent = parent;
+            this.name = name;
+            this.path = path;
+        }
+    }
+
+    /**
+     * Fichero cuyo contenido se está subiendo.
+     */
+    private static class PendingFile {
+
+        private final long id;
+        private final DirectoryState parent;
+        private final String name;
+        private final String path;
+        private final long lastModified;
+        private final Future<StoredContent> content;
+
+        PendingFile(long id, DirectoryState parent, String name, String path,
+                long lastModified, Future<StoredContent> content) {
+            this.id = id;
+            this.parent = parent;
+            this.name = name;
+            this.path = path;
+            this.lastModified = lastModified;
+            this.content = content;
+        }
+    }
+}
@@ -24,21 +24,48 @@
 package com.ymourino.ad05.persistence;
 
 import com.ymourino.ad05.persistence.models.Directory;
+import com.ymourino.ad05.persistence.models.FileContent;
+import com.ymourino.ad05.persistence.models.IDirectoryEntry;
+import com.ymourino.ad05.utils.Config;
+import com.ymourino.ad05.utils.ConfigBuilder;
+import com.ymourino.ad05.utils.DirectoryWalker;
+import com.ymourino.ad05.utils.HashUtils;
+import com.ymourino.ad05.utils.Manifest;
+import com.ymourino.ad05.utils.SyncState;
+import com.ymourino.ad05.utils.TreeHash;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
 import java.sql.Blob;
-import java.util.Collection;
-import java.util.Iterator;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import org.apache.commons.io.FileUtils;
-import org.apache.commons.io.filefilter.TrueFileFilter;
-import org.hibernate.Hibernate;
 import org.hibernate.Session;
 
 /**
@@ -49,6 +76,20 @@ import org.hibernate.Session;
  */
 public class DBHelper {
 
+    private static final String TEMPORARY_FILE_SUFFIX = ".minidrive-tmp";
+    private static final String IMPORT_MODE_COPY = "copy";
+    private static final int RESTORE_BUFFER_SIZE = 64 * 1024;
+
+    // Número de ficheros que se cargan en cada página al restaurar todo el
+    // árbol.
+    private static final int RESTORE_PAGE_SIZE = 1000;
+
+    // Cada hilo reutiliza siempre el mismo buffer para las restauraciones.
+    private static final ThreadLocal<ByteBuffer> RESTORE_BUFFER
+            = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(RESTORE_BUFFER_SIZE));
+
+    private static BlobStore blobStore;
+
     /**
      * Recorre un directorio y añade toda su información (directorios y
      * ficheros) a la base de datos.
@@ -58,92 +99,967 @@ public class DBHelper {
      * @throws Exception
      */
     public static Directory addDirectoryToDB(String path) throws Exception {
+        return addSubtreeToDB(path, Paths.get(path), null);
+    }
+
+    /**
+     * Recorre un subdirectorio del directorio raíz y añade toda su información
+     * (directorios y ficheros) a la base de datos. Se utiliza para volver a
+     * escanear solo la parte del árbol afectada por un cambio.
+     *
+     * @param path Ruta del directorio raíz.
+     * @param subtree Ruta del subdirectorio a escanear (puede ser la misma que
+     * la del directorio raíz).
+     * @param manifest Manifiesto que se actualiza con los elementos
+     * recorridos (pero no se guarda en disco), o null.
+     * @return Un objeto Directory con la información obtenida.
+     * @throws Exception
+     */
+    public static Directory addSubtreeToDB(String path, Path subtree, Manifest manifest)
+            throws Exception {
         IJPAUtil hibernateUtil = HibernateUtil.getHibernateUtil();
 
-        // Se normaliza la ruta que se le ha indicado al método.
+        // Se normalizan las rutas que se le han indicado al método.
         Path normalizedRootPath = Paths.get(path).toAbsolutePath().normalize();
+        Path normalizedSubtreePath = subtree.toAbsolutePath().normalize();
 
-        // Se obtiene el directorio padre de la base de datos...
-        Directory rootFromDB = hibernateUtil.getElement(
-                "from Directory where parent_id is null",
-                Directory.class);
+        if (!Files.isDirectory(normalizedSubtreePath)) {
+            return findRootDirectory(hibernateUtil);
+        }
 
-        // ...si existe. En caso de no existir, se crea uno nuevo.
-        Directory root = Objects.requireNonNullElseGet(
-                rootFromDB,
-                () -> new Directory(java.io.File.separator));
+        // Si la base de datos está vacía, no hace falta comparar nada y se
+        // puede importar todo el árbol por lotes sin mantenerlo en memoria.
+        if (normalizedSubtreePath.equals(normalizedRootPath)
+                && findRootDirectory(hibernateUtil) == null) {
+            importDirectoryToDB(hibernateUtil, normalizedRootPath);
+            return findRootDirectory(hibernateUtil);
+        }
+
+        // Todo el escaneo se hace en una misma unidad de trabajo, ya que las
+        // colecciones del árbol se cargan bajo demanda.
+        return hibernateUtil.inTransaction((session) -> {
+            ChangeSet changes = new ChangeSet(session);
+            Directory root = getRootDirectory(session);
+
+            if (!session.contains(root)) {
+                changes.added(root);
+            }
+
+            // Se carga de una vez la parte del árbol de la base de datos que
+            // se va a comparar con el disco.
+            Directory subtreeRoot = root.getDirectory(
+                    normalizedRootPath.relativize(normalizedSubtreePath).toString());
+
+            if (subtreeRoot != null) {
+                TreeLoader.loadSubtree(session, subtreeRoot, TreeLoader.UNLIMITED_DEPTH, false);
+            }
+
+            // Se recorre el subárbol en paralelo; las entradas llegan por
+            // lotes, con sus atributos y su ruta relativa ya calculados, y se
+            // procesan en este hilo (el de la sesión).
+            List<DirectoryWalker.Entry> walked = new ArrayList<>();
+
+            DirectoryWalker.walk(normalizedRootPath, normalizedSubtreePath, (batch) -> {
+                for (DirectoryWalker.Entry entry : batch) {
+                    BasicFileAttributes attributes = entry.getAttributes();
+                    String currentRelativePathWithName = entry.getRelativePath();
 
-        // Con Apache Commons IO se consigue una colección de los ficheros y
-        // directorios que "cuelgan" del directorio indicado en la configuración.
-        Collection<File> files
-                = FileUtils.listFilesAndDirs(
-                        normalizedRootPath.toFile(),
-                        TrueFileFilter.INSTANCE,
-                        TrueFileFilter.INSTANCE);
-
-        Iterator<File> filesIterator = files.iterator();
-
-        while (filesIterator.hasNext()) {
-            File currentElement = filesIterator.next();
-
-            if (currentElement.isDirectory()) {
-                if (!Paths.get(currentElement.toString()).toAbsolutePath().normalize().toString().equals(normalizedRootPath.toString())) {
-                    // Obtenemos la ruta relativa del directorio actual (con el
-                    // nombre incluido). Se obtiene previamente la ruta absoluta
-                    // y normalizada para evitar problemas.
-                    String currentRelativePathWithName
-                            = Paths.get(currentElement.toString())
-                                    .toAbsolutePath()
-                                    .normalize()
-                                    .toString()
-                                    .substring(
-                                            normalizedRootPath
-                                                    .toString().length() + 1);
-
-                    // Solo se añade el directorio si no existe en la base de datos.
-                    if (!root.existsDirectory(currentRelativePathWithName)) {
-                        Directory directory = new Directory(currentElement.getName());
-                        root.addDirectory(currentRelativePathWithName, directory);
+                    if (SyncState.isStatePath(currentRelativePathWithName)) {
+                        continue;
+                    }
+
+                    if (manifest != null && !currentRelativePathWithName.isEmpty()
+                            && !isTemporaryFile(entry.getPath())) {
+                        walked.add(entry);
+                    }
+
+                    if (attributes.isDirectory()) {
+                        // Solo se añade el directorio si no existe en la base
+                        // de datos (el directorio raíz siempre existe).
+                        if (!currentRelativePathWithName.isEmpty()
+                                && !root.existsDirectory(currentRelativePathWithName)) {
+                            Directory directory = new Directory(
+                                    entry.getPath().getFileName().toString());
+                            root.addDirectory(currentRelativePathWithName, directory);
+                            changes.added(directory);
+                        }
+                    } else if (attributes.isRegularFile()) {
+                        if (!isTemporaryFile(entry.getPath())) {
+                            addFileToDirectory(hibernateUtil, changes, root, entry.getPath(),
+                                    attributes, currentRelativePathWithName);
+                        }
+                    } else {
+                        throw new Exception("El elemento '"
+                                + entry.getPath()
+                                + "' no es un directorio ni tampoco un fichero.");
                     }
                 }
-            } else if (currentElement.isFile()) {
-                // Obtenemos la ruta relativa del fichero actual (con el nombre
-                // incluido). Se obtiene previamente la ruta absoluta y normalizada
-                // para evitar problemas.
-                String currentRelativePathWithName
-                        = Paths.get(currentElement.toString())
-                                .toAbsolutePath()
-                                .normalize()
-                                .toString()
-                                .substring(
-                                        normalizedRootPath
-                                                .toString().length() + 1);
-
-                // Solo se añade el fichero si no existe en la base de datos.
-                // TODO: No se comprueba si hay diferencias entre el fichero de
-                //  la base de datos y el fichero en disco.
-                if (!root.existsFile(currentRelativePathWithName)) {
-                    FileInputStream fis = new FileInputStream(currentElement);
-                    Blob fileContent = Hibernate
-                            .getLobCreator(hibernateUtil.getSession())
-                            .createBlob(fis, currentElement.length());
-                    com.ymourino.ad05.persistence.models.File file
-                            = new com.ymourino.ad05.persistence.models.File(
-                                    currentElement.getName(),
-                                    currentElement.length(),
-                                    fileContent);
-
-                    root.addFile(currentRelativePathWithName, file);
+            });
+
+            refreshTreeHashes(changes);
+            changes.apply();
+
+            // Con la sesión ya sincronizada, todos los elementos tienen id.
+            for (DirectoryWalker.Entry entry : walked) {
+                putManifestEntry(manifest, root, entry.getRelativePath(), entry.getAttributes());
+            }
+
+            return root;
+        });
+    }
+
+    /**
+     * Sincroniza con la base de datos los cambios del directorio local
+     * respecto al manifiesto de la última sincronización. Solo se consulta el
+     * disco (metadatos) para todo el árbol; la base de datos únicamente se
+     * toca para los elementos nuevos, modificados o eliminados. Al terminar,
+     * el manifiesto queda actualizado (pero no se guarda en disco).
+     *
+     * Con un manifiesto vacío todos los elementos se consideran cambiados, por
+     * lo que equivale a un escaneo completo.
+     *
+     * @param path Ruta del directorio raíz.
+     * @param manifest Manifiesto de la última sincronización.
+     * @throws Exception
+     */
+    public static void syncDirectoryToDB(String path, Manifest manifest) throws Exception {
+        IJPAUtil hibernateUtil = HibernateUtil.getHibernateUtil();
+        Path normalizedRootPath = Paths.get(path).toAbsolutePath().normalize();
+
+        if (findRootDirectory(hibernateUtil) == null) {
+            importDirectoryToDB(hibernateUtil, normalizedRootPath);
+            manifest.clear();
+        }
+
+        List<DirectoryWalker.Entry> changed = new ArrayList<>();
+        Manifest.Tracker tracker = manifest.track();
+
+        DirectoryWalker.walk(normalizedRootPath, normalizedRootPath, (batch) -> {
+            for (DirectoryWalker.Entry entry : batch) {
+                String relativePath = entry.getRelativePath();
+                BasicFileAttributes attributes = entry.getAttributes();
+
+                if (relativePath.isEmpty()
+                        || SyncState.isStatePath(relativePath)
+                        || (!attributes.isDirectory() && !attributes.isRegularFile())
+                        || (attributes.isRegularFile() && isTemporaryFile(entry.getPath()))) {
+                    continue;
                 }
+
+                Manifest.Entry known = manifest.get(relativePath);
+
+                // Si un fichero ha pasado a ser un directorio (o al revés), el
+                // elemento anterior se trata como eliminado.
+                if (known == null || known.isDirectory() == attributes.isDirectory()) {
+                    tracker.markSeen(relativePath);
+                }
+
+                if (known == null
+                        || known.isDirectory() != attributes.isDirectory()
+                        || (attributes.isRegularFile() && !known.matches(attributes.size(),
+                                attributes.lastModifiedTime().toMillis()))) {
+                    changed.add(entry);
+                }
+            }
+        });
+
+        // Se ordenan por longitud para que un directorio eliminado aparezca
+        // antes que su contenido, que ya no hace falta eliminar por separado.
+        List<String> removed = new ArrayList<>();
+
+        for (Manifest.Entry entry : tracker.getMissing()) {
+            removed.add(entry.getPath());
+        }
+
+        removed.sort(Comparator.comparingInt(String::length));
+
+        if (changed.isEmpty() && removed.isEmpty()) {
+            return;
+        }
+
+        hibernateUtil.inTransaction((session) -> {
+            ChangeSet changes = new ChangeSet(session);
+            Directory root = getRootDirectory(session);
+            Set<String> removedDirectories = new HashSet<>();
+
+            for (String relativePath : removed) {
+                if (isInsideAny(relativePath, removedDirectories)) {
+                    continue;
+                }
+
+                Manifest.Entry known = manifest.get(relativePath);
+                IDirectoryEntry entry;
+
+                if (known.isDirectory()) {
+                    entry = root.removeDirectory(relativePath);
+                    removedDirectories.add(relativePath);
+                } else {
+                    entry = root.removeFile(relativePath);
+                }
+
+                changes.removed(entry);
+            }
+
+            for (DirectoryWalker.Entry entry : changed) {
+                String relativePath = entry.getRelativePath();
+
+                if (entry.getAttributes().isDirectory()) {
+                    if (!root.existsDirectory(relativePath)) {
+                        Directory directory = new Directory(
+                                entry.getPath().getFileName().toString());
+                        root.addDirectory(relativePath, directory);
+                        changes.added(directory);
+                    }
+                } else {
+                    addFileToDirectory(hibernateUtil, changes, root, entry.getPath(),
+                            entry.getAttributes(), relativePath);
+                }
+            }
+
+            refreshTreeHashes(changes);
+            changes.apply();
+
+            // Con la sesión ya sincronizada, todos los elementos tienen id.
+            for (String relativePath : removed) {
+                manifest.removeTree(relativePath);
+            }
+
+            for (DirectoryWalker.Entry entry : changed) {
+                String relativePath = entry.getRelativePath();
+                BasicFileAttributes attributes = entry.getAttributes();
+
+                if (attributes.isDirectory()) {
+                    Directory directory = root.getDirectory(relativePath);
+                    manifest.put(new Manifest.Entry(relativePath, true, 0, 0,
+                            null, directory.getId()));
+                } else {
+                    com.ymourino.ad05.persistence.models.File file = root.getFile(relativePath);
+                    manifest.put(new Manifest.Entry(relativePath, false,
+                            attributes.size(), attributes.lastModifiedTime().toMillis(),
+                            file.getDigest(), file.getId()));
+                }
+            }
+
+            return null;
+        });
+    }
+
+    /**
+     * Comprueba que el directorio local y la base de datos tienen el mismo
+     * contenido y corrige las diferencias. Se calcula en disco el resumen
+     * agregado de cada directorio y, empezando por la raíz, solo se recorren
+     * en la base de datos los subárboles cuyo resumen no coincide.
+     *
+     * Los resúmenes de los ficheros se toman del manifiesto cuando el tamaño y
+     * la fecha coinciden, por lo que solo se leen los ficheros modificados.
+     * El manifiesto se actualiza con lo comprobado (pero no se guarda en
+     * disco).
+     *
+     * @param path Ruta del directorio raíz.
+     * @param manifest Manifiesto de la última sincronización.
+     * @throws Exception
+     */
+    public static void reconcileDirectoryWithDB(String path, Manifest manifest) throws Exception {
+        IJPAUtil hibernateUtil = HibernateUtil.getHibernateUtil();
+        Path normalizedRootPath = Paths.get(path).toAbsolutePath().normalize();
+
+        Map<String, String> localHashes = new HashMap<>();
+        List<Manifest.Entry> refreshed = new ArrayList<>();
+        computeLocalTreeHashes(normalizedRootPath, manifest, localHashes, refreshed);
+
+        hibernateUtil.inTransaction((session) -> {
+            ChangeSet changes = new ChangeSet(session);
+            Directory root = getRootDirectory(session);
+
+            if (!localHashes.get("").equals(root.getTreeHash())) {
+                reconcileDirectory(hibernateUtil, changes, normalizedRootPath, root, root, "",
+                        localHashes);
+                refreshTreeHashes(changes);
+                changes.apply();
+            }
+
+            return null;
+        });
+
+        for (Manifest.Entry entry : refreshed) {
+            manifest.put(entry);
+        }
+    }
+
+    /**
+     * Calcula en disco el resumen agregado de cada directorio, recorriendo el
+     * árbol en postorden.
+     *
+     * @param normalizedRootPath
+     * @param manifest
+     * @param localHashes Resumen de cada directorio, por su ruta relativa.
+     * @param refreshed Entradas del manifiesto cuyo resumen se ha recalculado.
+     * @throws IOException
+     */
+    private static void computeLocalTreeHashes(Path normalizedRootPath, Manifest manifest,
+            Map<String, String> localHashes, List<Manifest.Entry> refreshed) throws IOException {
+        Deque<TreeHash> hashes = new ArrayDeque<>();
+
+        Files.walkFileTree(normalizedRootPath, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                if (SyncState.isStatePath(normalizedRootPath.relativize(dir).toString())) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+
+                hashes.push(new TreeHash());
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                if (!Files.isRegularFile(file) || isTemporaryFile(file)) {
+                    return FileVisitResult.CONTINUE;
+                }
+
+                BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+                String relativePath = normalizedRootPath.relativize(file).toString();
+                long lastModified = attributes.lastModifiedTime().toMillis();
+                Manifest.Entry known = manifest.get(relativePath);
+                String digest;
+
+                if (known != null && known.getDigest() != null
+                        && known.matches(attributes.size(), lastModified)) {
+                    digest = known.getDigest();
+                } else {
+                    digest = HashUtils.digest(file);
+
+                    // El id de un fichero no cambia al modificar su contenido.
+                    if (known != null && !known.isDirectory()) {
+                        refreshed.add(new Manifest.Entry(relativePath, false,
+                                attributes.size(), lastModified, digest, known.getId()));
+                    }
+                }
+
+                hashes.peek().addFile(file.getFileName().toString(), attributes.size(), digest);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                Logger.getLogger(DBHelper.class.getName()).log(Level.WARNING, null, exc);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                if (exc != null) {
+                    throw exc;
+                }
+
+                String hash = hashes.pop().build();
+                localHashes.put(normalizedRootPath.relativize(dir).toString(), hash);
+
+                if (!hashes.isEmpty()) {
+                    hashes.peek().addDirectory(dir.getFileName().toString(), hash);
+                }
+
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * Corrige las diferencias entre un directorio local y el de la base de
+     * datos, y desciende a los subdirectorios cuyo resumen no coincide.
+     *
+     * @param hibernateUtil
+     * @param changes Cambios de la unidad de trabajo. Todos los directorios
+     * recorridos se marcan para recalcular su resumen.
+     * @param normalizedRootPath
+     * @param root Directorio raíz de la base de datos.
+     * @param directory Directorio de la base de datos a comprobar.
+     * @param relativePath Ruta relativa del directorio.
+     * @param localHashes Resúmenes calculados en disco.
+     * @throws Exception
+     */
+    private static void reconcileDirectory(IJPAUtil hibernateUtil, ChangeSet changes,
+            Path normalizedRootPath, Directory root, Directory directory, String relativePath,
+            Map<String, String> localHashes) throws Exception {
+        changes.touch(directory);
+
+        Set<String> localFiles = new HashSet<>();
+        Set<String> localDirectories = new HashSet<>();
+        List<String> differing = new ArrayList<>();
+
+        try (DirectoryStream<Path> children = Files.newDirectoryStream(
+                normalizedRootPath.resolve(relativePath))) {
+            for (Path child : children) {
+                String childRelativePath = normalizedRootPath.relativize(child).toString();
+                String name = child.getFileName().toString();
+
+                if (SyncState.isStatePath(childRelativePath)) {
+                    continue;
+                }
+
+                if (Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS)) {
+                    localDirectories.add(name);
+                    Directory dbDirectory = directory.getDirectories().get(name);
+
+                    if (dbDirectory == null) {
+                        Directory newDirectory = new Directory(name);
+                        root.addDirectory(childRelativePath, newDirectory);
+                        changes.added(newDirectory);
+                    }
+
+                    if (dbDirectory == null
+                            || !Objects.equals(localHashes.get(childRelativePath),
+                                    dbDirectory.getTreeHash())) {
+                        differing.add(childRelativePath);
+                    }
+                } else if (Files.isRegularFile(child) && !isTemporaryFile(child)) {
+                    localFiles.add(name);
+                    addFileToDirectory(hibernateUtil, changes, root, child,
+                            Files.readAttributes(child, BasicFileAttributes.class),
+                            childRelativePath);
+                }
+            }
+        }
+
+        for (String name : new ArrayList<>(directory.getFiles().keySet())) {
+            if (!localFiles.contains(name)) {
+                changes.removed(directory.getFiles().remove(name));
+            }
+        }
+
+        for (String name : new ArrayList<>(directory.getDirectories().keySet())) {
+            if (!localDirectories.contains(name)) {
+                // Se quita a través de la raíz para que también salga del
+                // índice de rutas.
+                changes.removed(root.removeDirectory(relativePath.isEmpty()
+                        ? name
+                        : relativePath + java.io.File.separator + name));
+            }
+        }
+
+        for (String childRelativePath : differing) {
+            reconcileDirectory(hibernateUtil, changes, normalizedRootPath, root,
+                    root.getDirectory(childRelativePath), childRelativePath,
+                    localHashes);
+        }
+    }
+
+    /**
+     * Recalcula el resumen agregado de los directorios indicados y, mientras
+     * cambie, el de sus antecesores. Se procesan de más profundo a menos, de
+     * forma que cada directorio se recalcula una sola vez y con los resúmenes
+     * de sus hijos ya actualizados.
+     *
+     * Solo se marcan como modificados los directorios cuyo resumen cambia.
+     *
+     * @param changes Cambios de la unidad de trabajo, con los directorios
+     * cuyo contenido ha cambiado.
+     */
+    private static void refreshTreeHashes(ChangeSet changes) {
+        Map<Directory, Integer> depths = new HashMap<>();
+        PriorityQueue<Directory> pending = new PriorityQueue<>(
+                Comparator.comparing((Directory directory)
+                        -> depths.computeIfAbsent(directory, DBHelper::getDepth))
+                        .reversed());
+
+        for (Directory directory : changes.getTouched()) {
+            if (!changes.isRemoved(directory) && !pending.contains(directory)) {
+                pending.add(directory);
+            }
+        }
+
+        while (!pending.isEmpty()) {
+            Directory directory = pending.poll();
+            String treeHash = directory.computeTreeHash();
+
+            if (treeHash.equals(directory.getTreeHash())) {
+                continue;
+            }
+
+            changes.modifying(directory);
+            directory.setTreeHash(treeHash);
+
+            if (directory.getParent() != null
+                    && !pending.contains(directory.getParent())) {
+                pending.add(directory.getParent());
+            }
+        }
+    }
+
+    private static int getDepth(Directory directory) {
+        int depth = 0;
+
+        for (Directory parent = directory.getParent(); parent != null; parent = parent.getParent()) {
+            depth++;
+        }
+
+        return depth;
+    }
+
+    /**
+     * Comprueba si una ruta relativa está dentro de alguno de los directorios
+     * indicados.
+     *
+     * @param relativePath
+     * @param directories
+     * @return
+     */
+    private static boolean isInsideAny(String relativePath, Set<String> directories) {
+        int separator = relativePath.lastIndexOf(java.io.File.separatorChar);
+
+        while (separator > 0) {
+            relativePath = relativePath.substring(0, separator);
+
+            if (directories.contains(relativePath)) {
+                return true;
+            }
+
+            separator = relativePath.lastIndexOf(java.io.File.separatorChar);
+        }
+
+        return false;
+    }
+
+    /**
+     * Importa por primera vez todo un directorio a la base de datos, con COPY
+     * (ver CopyImporter) o con inserciones por lotes, según la configuración.
+     *
+     * @param hibernateUtil
+     * @param normalizedRootPath Ruta normalizada del directorio raíz.
+     * @throws Exception
+     */
+    private static void importDirectoryToDB(IJPAUtil hibernateUtil, Path normalizedRootPath) throws Exception {
+        Config.App app = ConfigBuilder.getConfig().getApp();
+
+        if (IMPORT_MODE_COPY.equals(app.getImportMode())) {
+            CopyImporter.importDirectory(hibernateUtil, getBlobStore(), normalizedRootPath,
+                    app.getImportThreads());
+        } else {
+            batchImportDirectoryToDB(hibernateUtil, normalizedRootPath);
+        }
+    }
+
+    /**
+     * Importa por primera vez todo un directorio a la base de datos. Los
+     * elementos se guardan según se recorre el árbol mediante una BulkSession,
+     * por lo que solo se mantiene en memoria la rama que se está recorriendo.
+     *
+     * @param hibernateUtil
+     * @param normalizedRootPath Ruta normalizada del directorio raíz.
+     * @throws Exception
+     */
+    private static void batchImportDirectoryToDB(IJPAUtil hibernateUtil, Path normalizedRootPath) throws Exception {
+        Deque<Directory> parents = new ArrayDeque<>();
+
+        // Los resúmenes agregados se calculan durante el recorrido: cuando se
+        // termina un directorio ya se conocen todos sus hijos.
+        Deque<TreeHash> hashes = new ArrayDeque<>();
+
+        try (BulkSession bulkSession = hibernateUtil.openBulkSession()) {
+            Files.walkFileTree(normalizedRootPath, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                    if (SyncState.isStatePath(normalizedRootPath.relativize(dir).toString())) {
+                        return FileVisitResult.SKIP_SUBTREE;
+                    }
+
+                    Directory directory = new Directory(dir.equals(normalizedRootPath)
+                            ? java.io.File.separator
+                            : dir.getFileName().toString());
+                    directory.setParentReference(parents.peek());
+
+                    bulkSession.save(directory);
+                    parents.push(directory);
+                    hashes.push(new TreeHash());
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                    if (attrs.isRegularFile() && !isTemporaryFile(file)) {
+                        try {
+                            com.ymourino.ad05.persistence.models.File dbFile = newFile(
+                                    file.getFileName().toString(),
+                                    getBlobStore().store(hibernateUtil, file, null));
+                            dbFile.setParentReference(parents.peek());
+                            dbFile.setLastModified(attrs.lastModifiedTime().toMillis());
+
+                            bulkSession.save(dbFile);
+                            hashes.peek().addFile(dbFile.getName(),
+                                    dbFile.getSize(), dbFile.getDigest());
+                        } catch (IOException ex) {
+                            throw ex;
+                        } catch (Exception ex) {
+                            throw new IOException(ex);
+                        }
+                    }
+
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                    if (exc != null) {
+                        throw exc;
+                    }
+
+                    Directory directory = parents.pop();
+                    directory.setTreeHash(hashes.pop().build());
+                    bulkSession.update(directory);
+
+                    if (!hashes.isEmpty()) {
+                        hashes.peek().addDirectory(directory.getName(), directory.getTreeHash());
+                    }
+
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+
+            bulkSession.commit();
+        }
+    }
+
+    /**
+     * Añade un único fichero a la base de datos, o actualiza su contenido si
+     * ha cambiado. Se utiliza cuando se detecta un cambio en un fichero
+     * concreto, evitando volver a recorrer todo el árbol.
+     *
+     * @param path Ruta del directorio raíz.
+     * @param filePath Ruta del fichero a añadir.
+     * @param manifest Manifiesto que se actualiza con el fichero (pero no se
+     * guarda en disco).
+     * @throws Exception
+     */
+    public static void addFileToDB(String path, Path filePath, Manifest manifest) throws Exception {
+        IJPAUtil hibernateUtil = HibernateUtil.getHibernateUtil();
+
+        Path normalizedRootPath = Paths.get(path).toAbsolutePath().normalize();
+        Path normalizedFilePath = filePath.toAbsolutePath().normalize();
+
+        if (!Files.isRegularFile(normalizedFilePath)
+                || isTemporaryFile(normalizedFilePath)
+                || !normalizedFilePath.startsWith(normalizedRootPath)
+                || normalizedFilePath.equals(normalizedRootPath)
+                || SyncState.isStatePath(normalizedRootPath.relativize(normalizedFilePath).toString())) {
+            return;
+        }
+
+        String relativePathWithName = normalizedRootPath
+                .relativize(normalizedFilePath).toString();
+
+        hibernateUtil.inTransaction((session) -> {
+            ChangeSet changes = new ChangeSet(session);
+            Directory root = getRootDirectory(session);
+
+            BasicFileAttributes attributes = Files.readAttributes(
+                    normalizedFilePath, BasicFileAttributes.class);
+
+            // El directorio del fichero se busca por su ruta, sin recorrer el
+            // árbol desde la raíz. Solo si no existe se añade desde la raíz,
+            // creando los directorios que falten.
+            Path parentPath = normalizedRootPath.relativize(normalizedFilePath).getParent();
+            Directory parent = parentPath != null
+                    ? findDirectory(session, root.resolvePath(parentPath.toString()))
+                    : root;
+            boolean changed = parent != null
+                    ? addFileToDirectory(hibernateUtil, changes, parent, normalizedFilePath,
+                            attributes, normalizedFilePath.getFileName().toString())
+                    : addFileToDirectory(hibernateUtil, changes, root, normalizedFilePath,
+                            attributes, relativePathWithName);
+
+            if (changed) {
+                refreshTreeHashes(changes);
+                changes.apply();
+            }
+
+            if (parent != null) {
+                com.ymourino.ad05.persistence.models.File file = parent.getFiles()
+                        .get(normalizedFilePath.getFileName().toString());
+
+                if (file != null) {
+                    manifest.put(new Manifest.Entry(relativePathWithName, false,
+                            attributes.size(), attributes.lastModifiedTime().toMillis(),
+                            file.getDigest(), file.getId()));
+                }
+            } else {
+                // También se han creado los directorios que faltaban.
+                for (Path ancestor = parentPath; ancestor != null; ancestor = ancestor.getParent()) {
+                    putManifestEntry(manifest, root, ancestor.toString(), null);
+                }
+
+                putManifestEntry(manifest, root, relativePathWithName, attributes);
+            }
+
+            return null;
+        });
+    }
+
+    /**
+     * Elimina de la base de datos el fichero o directorio (con todo su
+     * contenido) que se encontraba en la ruta indicada.
+     *
+     * @param path Ruta del directorio raíz.
+     * @param removedPath Ruta del elemento eliminado del disco.
+     * @param manifest Manifiesto del que se quita el elemento (pero no se
+     * guarda en disco).
+     * @throws Exception
+     */
+    public static void removeFromDB(String path, Path removedPath, Manifest manifest)
+            throws Exception {
+        IJPAUtil hibernateUtil = HibernateUtil.getHibernateUtil();
+
+        Path normalizedRootPath = Paths.get(path).toAbsolutePath().normalize();
+        Path normalizedRemovedPath = removedPath.toAbsolutePath().normalize();
+
+        if (!normalizedRemovedPath.startsWith(normalizedRootPath)
+                || normalizedRemovedPath.equals(normalizedRootPath)) {
+            return;
+        }
+
+        String relativePathWithName = normalizedRootPath
+                .relativize(normalizedRemovedPath).toString();
+
+        hibernateUtil.inTransaction((session) -> {
+            ChangeSet changes = new ChangeSet(session);
+            String entryPath = getRootDirectory(session).resolvePath(relativePathWithName);
+
+            // Se busca el elemento por su ruta, sin recorrer el árbol.
+            IDirectoryEntry entry = findFile(session, entryPath);
+
+            if (entry != null) {
+                entry.getParent().getFiles().remove(entry.getName());
             } else {
-                throw new Exception("El elemento '"
-                        + currentElement.toString()
-                        + "' no es un directorio ni tampoco un fichero.");
+                entry = findDirectory(session, entryPath);
+
+                if (entry != null) {
+                    entry.getParent().getDirectories().remove(entry.getName());
+                }
+            }
+
+            if (entry != null) {
+                changes.removed(entry);
+                refreshTreeHashes(changes);
+                changes.apply();
+            }
+
+            return null;
+        });
+
+        manifest.removeTree(relativePathWithName);
+    }
+
+    /**
+     * Añade al manifiesto la entrada de un elemento que ya está en la base de
+     * datos con su id.
+     *
+     * @param manifest
+     * @param root Directorio raíz de la base de datos.
+     * @param relativePath Ruta relativa del elemento.
+     * @param attributes Atributos del elemento en disco, o null si es un
+     * directorio.
+     */
+    private static void putManifestEntry(Manifest manifest, Directory root, String relativePath,
+            BasicFileAttributes attributes) {
+        if (attributes == null || attributes.isDirectory()) {
+            Directory directory = root.getDirectory(relativePath);
+
+            if (directory != null) {
+                manifest.put(new Manifest.Entry(relativePath, true, 0, 0,
+                        null, directory.getId()));
+            }
+        } else {
+            com.ymourino.ad05.persistence.models.File file = root.getFile(relativePath);
+
+            if (file != null) {
+                manifest.put(new Manifest.Entry(relativePath, false,
+                        attributes.size(), attributes.lastModifiedTime().toMillis(),
+                        file.getDigest(), file.getId()));
             }
         }
+    }
+
+    /**
+     * Obtiene el directorio raíz de la base de datos, si existe, con una
+     * sesión propia.
+     *
+     * @param hibernateUtil
+     * @return El directorio raíz, o null si la base de datos está vacía.
+     * @throws Exception
+     */
+    private static Directory findRootDirectory(IJPAUtil hibernateUtil) throws Exception {
+        return hibernateUtil.inTransaction(DBHelper::queryRootDirectory);
+    }
+
+    /**
+     * Busca el directorio raíz. Es la consulta más repetida, así que su
+     * resultado se guarda en la caché de consultas.
+     *
+     * @param session
+     * @return El directorio raíz, o null si la base de datos está vacía.
+     */
+    private static Directory queryRootDirectory(Session session) {
+        return session.createQuery("from Directory where parent_id is null", Directory.class)
+                .setCacheable(true)
+                .uniqueResult();
+    }
+
+    /**
+     * Obtiene el directorio raíz de la base de datos o, si no existe, crea
+     * uno nuevo.
+     *
+     * @param session
+     * @return El directorio raíz.
+     */
+    private static Directory getRootDirectory(Session session) {
+        // Se obtiene el directorio padre de la base de datos...
+        Directory rootFromDB = queryRootDirectory(session);
+
+        // ...si existe. En caso de no existir, se crea uno nuevo.
+        return Objects.requireNonNullElseGet(
+                rootFromDB,
+                () -> new Directory(java.io.File.separator));
+    }
+
+    /**
+     * Busca un directorio por su ruta completa, con el índice
+     * directories_path_idx.
+     *
+     * @param session
+     * @param path Ruta completa del directorio (con el nombre).
+     * @return El directorio, o null si no existe.
+     */
+    private static Directory findDirectory(Session session, String path) {
+        return session.createQuery("from Directory where path = :path", Directory.class)
+                .setParameter("path", path)
+                .setCacheable(true)
+                .uniqueResult();
+    }
+
+    /**
+     * Busca un fichero por su ruta completa, con el índice files_path_idx.
+     *
+     * @param session
+     * @param path Ruta completa del fichero (con el nombre).
+     * @return El fichero, o null si no existe.
+     */
+    private static com.ymourino.ad05.persistence.models.File findFile(Session session,
+            String path) {
+        return session.createQuery("from File where path = :path",
+                com.ymourino.ad05.persistence.models.File.class)
+                .setParameter("path", path)
+                .setCacheable(true)
+                .uniqueResult();
+    }
+
+    /**
+     * Añade un fichero del disco al árbol de directorios indicado o, si ya
+     * existe, actualiza su contenido en caso de que haya cambiado.
+     *
+     * Solo se calcula el resumen del fichero cuando su tamaño o su fecha de
+     * modificación no coinciden con los guardados, y solo se vuelve a subir el
+     * contenido cuando el resumen es distinto. De esta forma, los escaneos de
+     * ficheros sin cambios únicamente consultan metadatos.
+     *
+     * @param hibernateUtil
+     * @param changes Cambios de la unidad de trabajo, donde se registra el
+     * fichero si es nuevo o se modifica.
+     * @param root Directorio raíz.
+     * @param currentElement Fichero en disco.
+     * @param attributes Atributos del fichero en disco.
+     * @param relativePathWithName Ruta relativa del fichero (con el nombre).
+     * @return True si se ha añadido o modificado el fichero, false en caso
+     * contrario.
+     * @throws Exception
+     */
+    private static boolean addFileToDirectory(IJPAUtil hibernateUtil, ChangeSet changes, Directory root,
+            Path currentElement, BasicFileAttributes attributes,
+            String relativePathWithName) throws Exception {
+        long size = attributes.size();
+        long lastModified = attributes.lastModifiedTime().toMillis();
+
+        com.ymourino.ad05.persistence.models.File file = root.getFile(relativePathWithName);
+
+        if (file == null) {
+            file = newFile(currentElement.getFileName().toString(),
+                    getBlobStore().store(hibernateUtil, currentElement, null));
+            file.setLastModified(lastModified);
+
+            root.addFile(relativePathWithName, file);
+            changes.added(file);
+            return true;
+        }
+
+        if (file.getSize() == size
+                && Objects.equals(file.getLastModified(), lastModified)
+                && file.getDigest() != null) {
+            return false;
+        }
+
+        // Al guardar los fragmentos solo se envían los que no existan ya en la
+        // base de datos, y los de la versión anterior ni se consultan, por lo
+        // que lo enviado depende del tamaño del cambio y no del fichero. Los
+        // ficheros subidos antes de guardar el resumen no lo tienen y siempre
+        // pasan a guardarse de nuevo.
+        StoredContent content = getBlobStore().store(hibernateUtil, currentElement, file);
+        changes.modifying(file);
+
+        if (!content.getDigest().equals(file.getDigest())) {
+            setStoredContent(file, content);
+        }
+
+        file.setLastModified(lastModified);
+        return true;
+    }
+
+    /**
+     * Obtiene el almacén del contenido de los ficheros, creándolo a partir de
+     * la configuración la primera vez.
+     *
+     * @return
+     * @throws Exception
+     */
+    private static synchronized BlobStore getBlobStore() throws Exception {
+        if (blobStore == null) {
+            blobStore = new TieredBlobStore(
+                    ConfigBuilder.getConfig().getApp().getInlineThreshold());
+        }
+
+        return blobStore;
+    }
+
+    /**
+     * Crea un fichero de la base de datos con el contenido indicado.
+     *
+     * @param name
+     * @param content
+     * @return
+     */
+    private static com.ymourino.ad05.persistence.models.File newFile(String name,
+            StoredContent content) {
+        com.ymourino.ad05.persistence.models.File file
+                = new com.ymourino.ad05.persistence.models.File(name, 0, new ArrayList<>());
+        setStoredContent(file, content);
+        return file;
+    }
+
+    /**
+     * Asigna a un fichero de la base de datos el contenido guardado,
+     * sustituyendo el anterior esté donde esté.
+     *
+     * @param file
+     * @param content
+     */
+    private static void setStoredContent(com.ymourino.ad05.persistence.models.File file,
+            StoredContent content) {
+        file.updateChunks(content.getChunks());
 
-        hibernateUtil.saveElement(root);
-        return root;
+        // El contenido anterior (si lo había) se elimina al dejar de estar
+        // asociado al fichero.
+        file.setFileContent(content.getInlineData() != null
+                ? new FileContent(content.getInlineData())
+                : null);
+        file.setSize(content.getSize());
+        file.setDigest(content.getDigest());
     }
 
     /**
@@ -160,75 +1076,173 @@ public class DBHelper {
             // Se normaliza la ruta que se le ha indicado al método.
             Path normalizedRootPath = Paths.get(path).toAbsolutePath().normalize();
 
-            // Se obtiene el directorio raíz de la base de datos.
-            Directory root = hibernateUtil.getElement(
-                    "from Directory where parent_id is null",
-                    Directory.class);
+            // Primero se crean los directorios y después se restauran los
+            // ficheros por páginas, de forma que la memoria utilizada no
+            // depende del tamaño del árbol. Cada página de ficheros se carga
+            // con sus fragmentos y su contenido en una sola consulta.
+            hibernateUtil.forEachElement("select d.path from Directory d",
+                    String.class, Collections.emptyMap(), (directoryPath) -> {
+                        new File(normalizedRootPath.toString() + directoryPath).mkdirs();
+                    });
 
-            if (root != null) {
-                restoreDirectoryFromDB(root, normalizedRootPath);
-            }
+            hibernateUtil.forEachPage("select f.id from File f where f.id > :after order by f.id",
+                    Long.class, Collections.emptyMap(), "after", 0L, (id) -> id, RESTORE_PAGE_SIZE,
+                    (ids) -> hibernateUtil.inTransaction((session) -> {
+                        List<com.ymourino.ad05.persistence.models.File> dbFiles = session.createQuery(
+                                "select distinct f from File f left join fetch f.chunks "
+                                + "left join fetch f.fileContent where f.id in (:ids)",
+                                com.ymourino.ad05.persistence.models.File.class)
+                                .setParameterList("ids", ids)
+                                .setHint("hibernate.query.passDistinctThrough", false)
+                                .getResultList();
+
+                        for (com.ymourino.ad05.persistence.models.File dbFile : dbFiles) {
+                            restoreFileFromDB(dbFile, normalizedRootPath);
+                        }
+
+                        return null;
+                    }));
         }
     }
 
     /**
-     * Restaura directorios y ficheros que estén en el objeto Directory indicado
-     * pero no en la ruta indicada.
+     * Restaura un fichero desde la base de datos hasta la ruta indicada. Debe
+     * llamarse con la sesión que cargó el fichero todavía abierta.
+     *
+     * El contenido se copia por bloques desde el flujo del Blob a un fichero
+     * temporal usando un buffer de tamaño fijo, de forma que la memoria
+     * utilizada no depende del tamaño del fichero. Cuando la copia termina, el
+     * fichero temporal se renombra de forma atómica.
      *
-     * @param directory
+     * @param dbFile
      * @param rootPath
      * @throws Exception
      */
-    private static void restoreDirectoryFromDB(Directory directory, Path rootPath) throws Exception {
-        IJPAUtil hibernateUtil = HibernateUtil.getHibernateUtil();
+    public static void restoreFileFromDB(com.ymourino.ad05.persistence.models.File dbFile,
+            Path rootPath) throws Exception {
+        Path target = Paths.get(rootPath.toString() + dbFile.getPathWithName());
+
+        if (dbFile.getBlobContent() != null) {
+            writeFile(target, dbFile.getLastModified(), false,
+                    (destination) -> restoreBlob(dbFile.getBlobContent(), destination));
+        } else {
+            restoreFileFromDB(target, dbFile, false);
+        }
+    }
+
+    /**
+     * Restaura un fichero guardado en un BlobStore, reemplazando, si se
+     * indica, el fichero existente. A diferencia del método anterior, no
+     * necesita la sesión que cargó el fichero (siempre que su lista de
+     * fragmentos esté cargada), por lo que puede llamarse desde cualquier
+     * hilo.
+     *
+     * @param target Ruta del fichero a restaurar.
+     * @param dbFile Fichero de la base de datos.
+     * @param replace True para reemplazar el fichero si ya existe.
+     * @throws Exception
+     */
+    public static void restoreFileFromDB(Path target,
+            com.ymourino.ad05.persistence.models.File dbFile, boolean replace) throws Exception {
+        writeFile(target, dbFile.getLastModified(), replace, (destination)
+                -> getBlobStore().restore(HibernateUtil.getHibernateUtil(), dbFile, destination));
+    }
 
-        if (!directory.getDirectories().isEmpty()) {
-            directory.getDirectories().entrySet().forEach((d) -> {
-                Directory currentDirectory = d.getValue();
+    /**
+     * Escribe un fichero, si no existe ya (o si se debe reemplazar), a través
+     * de un fichero temporal que se renombra de forma atómica al terminar. Si
+     * falla, se borra el temporal y se relanza la excepción.
+     *
+     * @param target
+     * @param lastModified
+     * @param replace
+     * @param writer
+     * @throws Exception
+     */
+    private static void writeFile(Path target, Long lastModified, boolean replace,
+            ContentWriter writer) throws Exception {
+        if (replace || !Files.exists(target)) {
+            Path temporary = null;
 
-                try {
-                    File file = new File(rootPath.toString() + currentDirectory.getPathWithName());
-                    file.mkdirs();
+            try {
+                Files.createDirectories(target.getParent());
+                temporary = Files.createTempFile(target.getParent(),
+                        "." + target.getFileName() + ".", TEMPORARY_FILE_SUFFIX);
 
-                    restoreDirectoryFromDB(d.getValue(), rootPath);
-                } catch (Exception ex) {
-                    Logger.getLogger(DBHelper.class.getName()).log(Level.SEVERE, null, ex);
+                try (FileChannel destination = FileChannel.open(temporary,
+                        StandardOpenOption.WRITE,
+                        StandardOpenOption.TRUNCATE_EXISTING)) {
+                    writer.write(destination);
+                    destination.force(false);
                 }
-            });
-        }
 
-        if (!directory.getFiles().isEmpty()) {
-            Session session = hibernateUtil.getSession();
-            session.beginTransaction();
+                // Se conserva la fecha de modificación guardada para que el
+                // siguiente escaneo no considere modificado el fichero.
+                if (lastModified != null) {
+                    Files.setLastModifiedTime(temporary,
+                            FileTime.fromMillis(lastModified));
+                }
 
-            directory.getFiles().entrySet().forEach((f) -> {
-                restoreFileFromDB(f.getValue(), rootPath);
-            });
+                Files.move(temporary, target, StandardCopyOption.ATOMIC_MOVE,
+                        StandardCopyOption.REPLACE_EXISTING);
+            } catch (Exception ex) {
+                if (temporary != null) {
+                    try {
+                        Files.deleteIfExists(temporary);
+                    } catch (IOException ex2) {
+                        ex.addSuppressed(ex2);
+                    }
+                }
 
-            session.getTransaction().commit();
+                throw ex;
+            }
         }
     }
 
     /**
-     * Restaura un fichero desde la base de datos hasta la ruta indicada.
+     * Copia el contenido de un Blob (ficheros guardados antes de existir los
+     * fragmentos) en el canal indicado.
      *
-     * @param dbFile
-     * @param rootPath
+     * @param content
+     * @param destination
+     * @throws Exception
      */
-    public static void restoreFileFromDB(com.ymourino.ad05.persistence.models.File dbFile, Path rootPath) {
-        if (!Files.exists(Paths.get(rootPath.toString() + dbFile.getPathWithName()))) {
-            try {
-                File file = new File(rootPath.toString() + dbFile.getPath());
-                file.mkdirs();
-
-                Blob content = dbFile.getContent();
-                byte[] blobData = content.getBytes(1, (int) dbFile.getSize());
-                FileOutputStream fos = new FileOutputStream(rootPath.toString() + dbFile.getPathWithName());
-                fos.write(blobData);
-                fos.close();
-            } catch (Exception ex) {
-                Logger.getLogger(DBHelper.class.getName()).log(Level.SEVERE, null, ex);
+    private static void restoreBlob(Blob content, FileChannel destination) throws Exception {
+        try (InputStream is = content.getBinaryStream();
+                ReadableByteChannel source = Channels.newChannel(is)) {
+            ByteBuffer buffer = RESTORE_BUFFER.get();
+            buffer.clear();
+
+            while (source.read(buffer) != -1) {
+                buffer.flip();
+
+                while (buffer.hasRemaining()) {
+                    destination.write(buffer);
+                }
+
+                buffer.clear();
             }
         }
     }
+
+    /**
+     * Indica si un fichero es un temporal creado durante una restauración, en
+     * cuyo caso no debe subirse a la base de datos.
+     *
+     * @param path
+     * @return
+     */
+    public static boolean isTemporaryFile(Path path) {
+        Path fileName = path.getFileName();
+        return fileName != null && fileName.toString().endsWith(TEMPORARY_FILE_SUFFIX);
+    }
+
+    /**
+     * Escribe el contenido de un fichero en el canal indicado.
+     */
+    @FunctionalInterface
+    private interface ContentWriter {
+
+        void write(FileChannel destination) throws Exception;
+    }
 }
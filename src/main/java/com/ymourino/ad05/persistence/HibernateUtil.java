@@ -23,33 +23,63 @@
  */
 package com.ymourino.ad05.persistence;
 
+import com.ymourino.ad05.persistence.models.Change;
+import com.ymourino.ad05.persistence.models.Chunk;
 import com.ymourino.ad05.persistence.models.Directory;
 import com.ymourino.ad05.persistence.models.File;
+import com.ymourino.ad05.persistence.models.FileContent;
 import com.ymourino.ad05.utils.Config;
 import com.ymourino.ad05.utils.ConfigBuilder;
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.UUID;
+import java.util.function.Function;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import javax.persistence.*;
+import javax.sql.DataSource;
+import org.ehcache.jsr107.EhcacheCachingProvider;
+import org.hibernate.Cache;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
 import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.StatelessSession;
+import org.hibernate.Transaction;
 import org.hibernate.boot.registry.StandardServiceRegistry;
 import org.hibernate.boot.registry.StandardServiceRegistryBuilder;
+import org.hibernate.cache.jcache.ConfigSettings;
 import org.hibernate.cfg.Configuration;
 import org.hibernate.cfg.Environment;
+import org.hibernate.query.Query;
 
 /**
  * Clase que implementa el patrón Singleton para acceder a la base de datos.
  *
+ * Las conexiones se obtienen de un pool compartido. Las sesiones de Hibernate
+ * no son seguras entre hilos, por lo que cada operación (o unidad de trabajo)
+ * abre su propia sesión, que se cierra al terminar.
+ *
  * @author Yago Mouriño Mendaña
  */
 public class HibernateUtil implements IJPAUtil {
 
     private static HibernateUtil hibernateUtil;
-    private final EntityManagerFactory entityManagerFactory;
-    private final Session session;
+    private final HikariDataSource dataSource;
+    private final String clientId;
+    private final SessionFactory sessionFactory;
+    private final int batchSize;
+    private final int flushInterval;
+    private final int fetchSize;
 
-    public static HibernateUtil getHibernateUtil() throws Exception {
+    public static synchronized HibernateUtil getHibernateUtil() throws Exception {
         if (hibernateUtil == null) {
             hibernateUtil = new HibernateUtil();
         }
@@ -64,11 +94,21 @@ public class HibernateUtil implements IJPAUtil {
         ConfigBuilder config = ConfigBuilder.getConfig();
         Config.DbConnection dbConnection = config.getDbConnection();
 
-        properties.put(Environment.URL, "jdbc:postgresql://"
+        HikariConfig poolConfig = new HikariConfig();
+        poolConfig.setJdbcUrl("jdbc:postgresql://"
                 + dbConnection.getAddress()
                 + "/" + dbConnection.getName());
-        properties.put(Environment.USER, dbConnection.getUser());
-        properties.put(Environment.PASS, dbConnection.getPassword());
+        poolConfig.setUsername(dbConnection.getUser());
+        poolConfig.setPassword(dbConnection.getPassword());
+        poolConfig.setMaximumPoolSize(dbConnection.getPoolSize());
+
+        // Cada ejecución del programa es un cliente distinto.
+        clientId = "minidrive-" + UUID.randomUUID().toString();
+        poolConfig.addDataSourceProperty("ApplicationName", clientId);
+        dataSource = new HikariDataSource(poolConfig);
+        adjustSequences(dataSource);
+
+        properties.put(Environment.DATASOURCE, dataSource);
         properties.put(Environment.DIALECT, dbConnection.getDialect());
 
         // Con update se crea (o actualiza) la base de datos, pero si ya
@@ -76,28 +116,76 @@ public class HibernateUtil implements IJPAUtil {
         // se conservan.
         properties.put(Environment.HBM2DDL_AUTO, "update");
 
+        // Se agrupan las sentencias en lotes JDBC. Ordenar las inserciones y
+        // actualizaciones por entidad permite formar lotes más grandes.
+        batchSize = dbConnection.getBatchSize();
+        flushInterval = dbConnection.getFlushInterval();
+        fetchSize = dbConnection.getFetchSize();
+        properties.put(Environment.STATEMENT_BATCH_SIZE, String.valueOf(batchSize));
+        properties.put(Environment.ORDER_INSERTS, "true");
+        properties.put(Environment.ORDER_UPDATES, "true");
+        properties.put(Environment.BATCH_VERSIONED_DATA, "true");
+
+        // Caché de segundo nivel (y de consultas) para los metadatos de
+        // directorios y ficheros, con un límite de elementos por región. Los
+        // cambios hechos por otros clientes no pasan por esta caché: se
+        // invalidan a partir del registro de cambios (ver ChangeLog).
+        if (dbConnection.getCacheSize() > 0) {
+            properties.put(Environment.USE_SECOND_LEVEL_CACHE, "true");
+            properties.put(Environment.USE_QUERY_CACHE, "true");
+            properties.put(Environment.CACHE_REGION_FACTORY,
+                    BoundedCacheRegionFactory.class.getName());
+            properties.put(ConfigSettings.PROVIDER, EhcacheCachingProvider.class.getName());
+            properties.put(ConfigSettings.MISSING_CACHE_STRATEGY, "create");
+            properties.put(BoundedCacheRegionFactory.MAX_ENTRIES,
+                    String.valueOf(dbConnection.getCacheSize()));
+        }
+
         configuration.setProperties(properties);
 
+        configuration.addAnnotatedClass(Change.class);
+        configuration.addAnnotatedClass(Chunk.class);
         configuration.addAnnotatedClass(Directory.class);
         configuration.addAnnotatedClass(File.class);
+        configuration.addAnnotatedClass(FileContent.class);
 
         final StandardServiceRegistry registry
                 = new StandardServiceRegistryBuilder()
                         .applySettings(configuration.getProperties())
                         .build();
 
-        entityManagerFactory = configuration.buildSessionFactory(registry);
-        session = entityManagerFactory.createEntityManager().unwrap(Session.class);
+        sessionFactory = configuration.buildSessionFactory(registry);
+    }
+
+    /**
+     * Las bases de datos creadas cuando los identificadores eran columnas
+     * IDENTITY tienen secuencias que avanzan de uno en uno. Se ajustan al
+     * tamaño de reserva que espera Hibernate antes de crear la
+     * SessionFactory, ya que esta comprueba que coincidan y no arranca si no
+     * es así.
+     *
+     * @param dataSource
+     * @throws SQLException
+     */
+    private static void adjustSequences(DataSource dataSource) throws SQLException {
+        try (Connection conn = dataSource.getConnection();
+                Statement stmt = conn.createStatement()) {
+            conn.setAutoCommit(true);
+            stmt.execute("ALTER SEQUENCE IF EXISTS directories_id_seq INCREMENT BY "
+                    + Directory.ID_ALLOCATION_SIZE);
+            stmt.execute("ALTER SEQUENCE IF EXISTS files_id_seq INCREMENT BY "
+                    + File.ID_ALLOCATION_SIZE);
+        }
     }
 
     @Override
     public void close() {
-        if (session != null && session.isOpen()) {
-            session.close();
+        if (sessionFactory != null && sessionFactory.isOpen()) {
+            sessionFactory.close();
         }
 
-        if (entityManagerFactory != null && entityManagerFactory.isOpen()) {
-            entityManagerFactory.close();
+        if (dataSource != null && !dataSource.isClosed()) {
+            dataSource.close();
         }
     }
 
@@ -105,13 +193,13 @@ public class HibernateUtil implements IJPAUtil {
     public boolean saveElement(Object element) {
         if (element != null) {
             try {
-                session.beginTransaction();
-                session.save(element);
-                session.getTransaction().commit();
+                inTransaction((session) -> {
+                    session.saveOrUpdate(element);
+                    return null;
+                });
                 return true;
             } catch (Exception ex) {
                 Logger.getLogger(DBHelper.class.getName()).log(Level.SEVERE, null, ex);
-                session.getTransaction().rollback();
                 return false;
             }
         } else {
@@ -123,13 +211,13 @@ public class HibernateUtil implements IJPAUtil {
     public boolean deleteElement(Object element) {
         if (element != null) {
             try {
-                session.beginTransaction();
-                session.delete(element);
-                session.getTransaction().commit();
+                inTransaction((session) -> {
+                    session.delete(element);
+                    return null;
+                });
                 return true;
             } catch (Exception ex) {
                 Logger.getLogger(DBHelper.class.getName()).log(Level.SEVERE, null, ex);
-                session.getTransaction().rollback();
                 return false;
             }
         } else {
@@ -141,13 +229,13 @@ public class HibernateUtil implements IJPAUtil {
     public boolean updateElement(Object element) {
         if (element != null) {
             try {
-                session.beginTransaction();
-                session.update(element);
-                session.getTransaction().commit();
+                inTransaction((session) -> {
+                    session.update(element);
+                    return null;
+                });
                 return true;
             } catch (Exception ex) {
                 Logger.getLogger(DBHelper.class.getName()).log(Level.SEVERE, null, ex);
-                session.getTransaction().rollback();
                 return false;
             }
         } else {
@@ -158,7 +246,9 @@ public class HibernateUtil implements IJPAUtil {
     @Override
     public <T, U> T getElement(U id, Class<T> type) {
         if (id != null) {
-            return session.find(type, id);
+            try (Session session = openSession()) {
+                return session.find(type, id);
+            }
         } else {
             return null;
         }
@@ -166,7 +256,14 @@ public class HibernateUtil implements IJPAUtil {
 
     @Override
     public <T> T getElement(String query, Class<T> type) {
-        List<T> element = getElements(query, type);
+        List<T> element;
+
+        // Solo se pide a la base de datos el primer resultado.
+        try (Session session = openSession()) {
+            element = session.createQuery(query, type)
+                    .setMaxResults(1)
+                    .getResultList();
+        }
 
         if (!element.isEmpty()) {
             return element.get(0);
@@ -177,11 +274,136 @@ public class HibernateUtil implements IJPAUtil {
 
     @Override
     public <T> List<T> getElements(String query, Class<T> type) {
-        return session.createQuery(query, type).getResultList();
+        try (Session session = openSession()) {
+            return session.createQuery(query, type).getResultList();
+        }
+    }
+
+    @Override
+    public <T> List<T> getElements(String query, Class<T> type, Map<String, ?> parameters,
+            int maxResults) {
+        try (Session session = openSession()) {
+            return createReadOnlyQuery(session, query, type, parameters)
+                    .setMaxResults(maxResults)
+                    .getResultList();
+        }
+    }
+
+    @Override
+    public <T> void forEachElement(String query, Class<T> type, Map<String, ?> parameters,
+            ResultHandler<T> handler) throws Exception {
+        // PostgreSQL solo trae los resultados por partes dentro de una
+        // transacción; fuera de ella, el driver los carga todos de una vez.
+        inTransaction((session) -> {
+            try (ScrollableResults results = createReadOnlyQuery(session, query, type, parameters)
+                    .scroll(ScrollMode.FORWARD_ONLY)) {
+                int count = 0;
+
+                while (results.next()) {
+                    handler.handle(type.cast(results.get(0)));
+
+                    if (++count % fetchSize == 0) {
+                        session.clear();
+                    }
+                }
+            }
+
+            return null;
+        });
+    }
+
+    @Override
+    public <T, K> void forEachPage(String query, Class<T> type, Map<String, ?> parameters,
+            String keyParameter, K firstKey, Function<T, K> key, int pageSize,
+            ResultHandler<List<T>> handler) throws Exception {
+        Map<String, Object> pageParameters = new HashMap<>(parameters);
+        K last = firstKey;
+        List<T> page;
+
+        do {
+            pageParameters.put(keyParameter, last);
+            page = getElements(query, type, pageParameters, pageSize);
+
+            if (!page.isEmpty()) {
+                handler.handle(page);
+                last = key.apply(page.get(page.size() - 1));
+            }
+        } while (page.size() == pageSize);
+    }
+
+    /**
+     * Crea una consulta de solo lectura con los parámetros indicados.
+     *
+     * @param <T>
+     * @param session
+     * @param query
+     * @param type
+     * @param parameters
+     * @return
+     */
+    private <T> Query<T> createReadOnlyQuery(Session session, String query, Class<T> type,
+            Map<String, ?> parameters) {
+        Query<T> result = session.createQuery(query, type)
+                .setReadOnly(true)
+                .setFetchSize(fetchSize);
+
+        parameters.forEach((name, value) -> {
+            if (value instanceof Collection) {
+                result.setParameterList(name, (Collection<?>) value);
+            } else {
+                result.setParameter(name, value);
+            }
+        });
+
+        return result;
+    }
+
+    @Override
+    public <T> T inTransaction(UnitOfWork<T> work) throws Exception {
+        try (Session session = openSession()) {
+            Transaction transaction = session.beginTransaction();
+
+            try {
+                T result = work.execute(session);
+                transaction.commit();
+                return result;
+            } catch (Exception ex) {
+                if (transaction.isActive()) {
+                    transaction.rollback();
+                }
+
+                throw ex;
+            }
+        }
+    }
+
+    @Override
+    public Session openSession() {
+        return sessionFactory.openSession();
+    }
+
+    @Override
+    public BulkSession openBulkSession() {
+        return new BulkSession(openSession(), batchSize, flushInterval);
+    }
+
+    @Override
+    public StatelessSession openStatelessSession() {
+        return sessionFactory.openStatelessSession();
+    }
+
+    @Override
+    public Cache getCache() {
+        return sessionFactory.getCache();
+    }
+
+    @Override
+    public DataSource getDataSource() {
+        return dataSource;
     }
 
     @Override
-    public Session getSession() {
-        return this.session;
+    public String getClientId() {
+        return clientId;
     }
 }
@@ -24,7 +24,12 @@
 package com.ymourino.ad05.persistence;
 
 import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import javax.sql.DataSource;
+import org.hibernate.Cache;
 import org.hibernate.Session;
+import org.hibernate.StatelessSession;
 
 /**
  *
@@ -46,5 +51,102 @@ public interface IJPAUtil {
 
     <T> List<T> getElements(String query, Class<T> type);
 
-    Session getSession();
+    /**
+     * Obtiene como máximo el número de resultados indicado de una consulta con
+     * parámetros. Los resultados se cargan en modo de solo lectura.
+     *
+     * @param <T>
+     * @param query Consulta HQL.
+     * @param type Tipo de los resultados.
+     * @param parameters Valores de los parámetros de la consulta, por nombre
+     * (las colecciones se asignan como listas).
+     * @param maxResults Número máximo de resultados.
+     * @return
+     */
+    <T> List<T> getElements(String query, Class<T> type, Map<String, ?> parameters,
+            int maxResults);
+
+    /**
+     * Recorre los resultados de una consulta sin cargarlos todos en memoria:
+     * el driver los trae por partes (según el fetchSize de la configuración)
+     * y la sesión se vacía cada vez, por lo que la memoria utilizada no
+     * depende del número de resultados. Los resultados se cargan en modo de
+     * solo lectura y no deben usarse fuera del manejador.
+     *
+     * @param <T>
+     * @param query Consulta HQL.
+     * @param type Tipo de los resultados.
+     * @param parameters Valores de los parámetros de la consulta, por nombre.
+     * @param handler Operación a aplicar a cada resultado.
+     * @throws Exception
+     */
+    <T> void forEachElement(String query, Class<T> type, Map<String, ?> parameters,
+            ResultHandler<T> handler) throws Exception;
+
+    /**
+     * Recorre los resultados de una consulta por páginas, usando como cursor
+     * la clave del último resultado de la página anterior (paginación por
+     * clave). La consulta debe filtrar por esa clave con el parámetro
+     * indicado y ordenar por ella, por ejemplo "from File f where f.id >
+     * :after order by f.id". Cada página se obtiene con una sesión nueva, así
+     * que no se mantiene ninguna transacción abierta durante el recorrido.
+     *
+     * @param <T>
+     * @param <K>
+     * @param query Consulta HQL.
+     * @param type Tipo de los resultados.
+     * @param parameters Valores del resto de parámetros de la consulta.
+     * @param keyParameter Nombre del parámetro de la clave.
+     * @param firstKey Valor de la clave para obtener la primera página.
+     * @param key Obtiene la clave de un resultado.
+     * @param pageSize Número de resultados por página.
+     * @param handler Operación a aplicar a cada página.
+     * @throws Exception
+     */
+    <T, K> void forEachPage(String query, Class<T> type, Map<String, ?> parameters,
+            String keyParameter, K firstKey, Function<T, K> key, int pageSize,
+            ResultHandler<List<T>> handler) throws Exception;
+
+    /**
+     * Ejecuta una unidad de trabajo en una transacción, con una sesión nueva
+     * que se cierra al terminar. Si se produce una excepción, la transacción
+     * se deshace y la excepción se propaga.
+     *
+     * @param <T>
+     * @param work
+     * @return El resultado de la unidad de trabajo.
+     * @throws Exception
+     */
+    <T> T inTransaction(UnitOfWork<T> work) throws Exception;
+
+    /**
+     * Abre una sesión nueva. Quien la abre es responsable de cerrarla y no
+     * debe compartirla entre hilos.
+     *
+     * @return
+     */
+    Session openSession();
+
+    BulkSession openBulkSession();
+
+    StatelessSession openStatelessSession();
+
+    /**
+     * Obtiene la caché de segundo nivel, para invalidar los elementos que han
+     * cambiado en la base de datos sin pasar por este cliente.
+     *
+     * @return
+     */
+    Cache getCache();
+
+    DataSource getDataSource();
+
+    /**
+     * Obtiene el identificador de este cliente. Todas sus conexiones lo usan
+     * como application_name, así que el registro de cambios sabe qué cambios
+     * ha hecho cada cliente.
+     *
+     * @return
+     */
+    String getClientId();
 }
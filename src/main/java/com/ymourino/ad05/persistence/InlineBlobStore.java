@@ -0,0 +1,80 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2020 Yago Mouriño Mendaña
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.ymourino.ad05.persistence;
+
+import com.ymourino.ad05.persistence.models.File;
+import com.ymourino.ad05.utils.HashUtils;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Guarda el contenido de los ficheros pequeños en una fila de la tabla
+ * file_contents (columna inline_data) enlazada con la del fichero, de forma
+ * que no necesita fragmentos ni objetos grandes. El contenido se carga de forma
+ * perezosa: leerlo supone una consulta más, solo cuando se restaura el fichero.
+ *
+ * @author Yago Mouriño Mendaña
+ */
+public class InlineBlobStore implements BlobStore {
+
+    private final int maxSize;
+
+    public InlineBlobStore(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @return El contenido guardado, o null si el fichero supera el tamaño
+     * máximo (por ejemplo, porque ha crecido desde que se comprobó).
+     */
+    @Override
+    public StoredContent store(IJPAUtil hibernateUtil, Path path, File previous) throws Exception {
+        byte[] data;
+
+        try (InputStream is = Files.newInputStream(path)) {
+            data = is.readNBytes(maxSize + 1);
+        }
+
+        if (data.length > maxSize) {
+            return null;
+        }
+
+        return new StoredContent(HashUtils.toHex(HashUtils.newMessageDigest().digest(data)),
+                data.length, data);
+    }
+
+    @Override
+    public void restore(IJPAUtil hibernateUtil, File file, WritableByteChannel destination) throws Exception {
+        ByteBuffer buffer = ByteBuffer.wrap(file.getInlineData());
+
+        while (buffer.hasRemaining()) {
+            destination.write(buffer);
+        }
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2020 Yago Mouriño Mendaña
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.ymourino.ad05.persistence;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Resultado de guardar el contenido de un fichero en un BlobStore: su resumen,
+ * su tamaño y dónde ha quedado guardado (en fragmentos o en la propia fila del
+ * fichero).
+ *
+ * @author Yago Mouriño Mendaña
+ */
+public class StoredContent {
+
+    private final String digest;
+    private final long size;
+    private final List<String> chunks;
+    private final byte[] inlineData;
+
+    public StoredContent(String digest, long size, List<String> chunks) {
+        this(digest, size, chunks, null);
+    }
+
+    public StoredContent(String digest, long size, byte[] inlineData) {
+        this(digest, size, Collections.emptyList(), inlineData);
+    }
+
+    private StoredContent(String digest, long size, List<String> chunks, byte[] inlineData) {
+        this.digest = digest;
+        this.size = size;
+        this.chunks = chunks;
+        this.inlineData = inlineData;
+    }
+
+    public String getDigest() {
+        return digest;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * @return La lista ordenada de fragmentos (vacía si el contenido se guarda
+     * en la fila del fichero).
+     */
+    public List<String> getChunks() {
+        return chunks;
+    }
+
+    /**
+     * @return El contenido completo, o null si se guarda en fragmentos.
+     */
+    public byte[] getInlineData() {
+        return inlineData;
+    }
+}
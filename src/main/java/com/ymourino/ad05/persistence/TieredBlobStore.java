@@ -0,0 +1,75 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2020 Yago Mouriño Mendaña
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.ymourino.ad05.persistence;
+
+import com.ymourino.ad05.persistence.models.File;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Reparte el contenido de los ficheros entre dos niveles según su tamaño: los
+ * ficheros pequeños se guardan enteros en una fila de file_contents
+ * (InlineBlobStore) y el resto en fragmentos (ChunkBlobStore).
+ *
+ * @author Yago Mouriño Mendaña
+ */
+public class TieredBlobStore implements BlobStore {
+
+    private final int inlineThreshold;
+    private final BlobStore inline;
+    private final BlobStore chunked;
+
+    /**
+     * @param inlineThreshold Tamaño máximo (en bytes) de los ficheros que se
+     * guardan enteros en file_contents.
+     */
+    public TieredBlobStore(int inlineThreshold) {
+        this.inlineThreshold = inlineThreshold;
+        this.inline = new InlineBlobStore(inlineThreshold);
+        this.chunked = new ChunkBlobStore();
+    }
+
+    @Override
+    public StoredContent store(IJPAUtil hibernateUtil, Path path, File previous) throws Exception {
+        if (Files.size(path) <= inlineThreshold) {
+            StoredContent content = inline.store(hibernateUtil, path, previous);
+
+            if (content != null) {
+                return content;
+            }
+        }
+
+        return chunked.store(hibernateUtil, path, previous);
+    }
+
+    @Override
+    public void restore(IJPAUtil hibernateUtil, File file, WritableByteChannel destination) throws Exception {
+        if (file.getInlineData() != null) {
+            inline.restore(hibernateUtil, file, destination);
+        } else {
+            chunked.restore(hibernateUtil, file, destination);
+        }
+    }
+}
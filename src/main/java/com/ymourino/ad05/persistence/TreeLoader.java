@@ -0,0 +1,160 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2020 Yago Mouriño Mendaña
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.ymourino.ad05.persistence;
+
+import com.ymourino.ad05.persistence.models.Directory;
+import java.util.List;
+import java.util.stream.Collectors;
+import org.hibernate.Session;
+
+/**
+ * Clase con métodos estáticos para cargar de una vez un subárbol completo (o
+ * hasta cierta profundidad) de la base de datos.
+ *
+ * Recorrer el árbol con getDirectories() y getFiles() inicializa dos
+ * colecciones por directorio, con una consulta cada una. Aquí los
+ * identificadores del subárbol se obtienen con una única consulta (por prefijo
+ * de la ruta guardada o, si se limita la profundidad, recursiva con WITH
+ * RECURSIVE) y después las colecciones de todos los directorios se
+ * inicializan por lotes, de forma que el número de consultas no depende del
+ * número de directorios sino del de lotes.
+ *
+ * @author Yago Mouriño Mendaña
+ */
+public class TreeLoader {
+
+    public static final int UNLIMITED_DEPTH = Integer.MAX_VALUE;
+
+    // Número de directorios cuyas colecciones se inicializan en cada consulta.
+    private static final int BATCH_SIZE = 1000;
+
+    private TreeLoader() {
+    }
+
+    /**
+     * Carga en la sesión el subárbol que empieza en el directorio indicado.
+     * Tras la llamada, recorrer el subárbol no lanza más consultas.
+     *
+     * @param session
+     * @param directory Directorio raíz del subárbol.
+     * @param maxDepth Profundidad máxima (0 para cargar solo el propio
+     * directorio) o UNLIMITED_DEPTH.
+     * @param withContent True para cargar también los fragmentos y el
+     * contenido de los ficheros (para restaurarlos).
+     */
+    public static void loadSubtree(Session session, Directory directory, int maxDepth,
+            boolean withContent) {
+        List<Long> ids = maxDepth == UNLIMITED_DEPTH
+                ? findSubtreeIds(session, directory)
+                : findSubtreeIds(session, directory.getId(), maxDepth);
+
+        for (int i = 0; i < ids.size(); i += BATCH_SIZE) {
+            List<Long> batch = ids.subList(i, Math.min(i + BATCH_SIZE, ids.size()));
+
+            session.createQuery(
+                    "select distinct d from Directory d "
+                    + "left join fetch d.directories where d.id in (:ids)",
+                    Directory.class)
+                    .setParameterList("ids", batch)
+                    .setHint("hibernate.query.passDistinctThrough", false)
+                    .getResultList();
+
+            session.createQuery(
+                    "select distinct d from Directory d "
+                    + "left join fetch d.files where d.id in (:ids)",
+                    Directory.class)
+                    .setParameterList("ids", batch)
+                    .setHint("hibernate.query.passDistinctThrough", false)
+                    .getResultList();
+
+            if (withContent) {
+                session.createQuery(
+                        "select distinct f from File f left join fetch f.chunks "
+                        + "left join fetch f.fileContent where f.parent.id in (:ids)",
+                        com.ymourino.ad05.persistence.models.File.class)
+                        .setParameterList("ids", batch)
+                        .setHint("hibernate.query.passDistinctThrough", false)
+                        .getResultList();
+            }
+        }
+    }
+
+    /**
+     * Obtiene los identificadores de todos los directorios de un subárbol con
+     * una búsqueda por prefijo de la ruta, que recorre un rango del índice
+     * directories_path_idx.
+     *
+     * @param session
+     * @param directory
+     * @return
+     */
+    @SuppressWarnings("unchecked")
+    private static List<Long> findSubtreeIds(Session session, Directory directory) {
+        List<Number> ids = session.createNativeQuery(
+                "select id from directories "
+                + "where id = :id or path like :pattern escape '!'")
+                .setParameter("id", directory.getId())
+                .setParameter("pattern", getSubtreePattern(directory))
+                .getResultList();
+
+        return ids.stream().map(Number::longValue).collect(Collectors.toList());
+    }
+
+    /**
+     * Obtiene el patrón LIKE que selecciona los elementos contenidos (a
+     * cualquier profundidad) en un directorio.
+     *
+     * @param directory
+     * @return
+     */
+    private static String getSubtreePattern(Directory directory) {
+        return directory.getChildPathPrefix().replace("!", "!!").replace("%", "!%").replace("_", "!_") + "%";
+    }
+
+    /**
+     * Obtiene los identificadores de los directorios de un subárbol, hasta la
+     * profundidad indicada, con una consulta recursiva.
+     *
+     * @param session
+     * @param directoryId
+     * @param maxDepth
+     * @return
+     */
+    @SuppressWarnings("unchecked")
+    private static List<Long> findSubtreeIds(Session session, long directoryId, int maxDepth) {
+        List<Number> ids = session.createNativeQuery(
+                "with recursive tree (id, depth) as ("
+                + "select id, 0 from directories where id = :id "
+                + "union all "
+                + "select d.id, t.depth + 1 from directories d "
+                + "join tree t on d.parent_id = t.id "
+                + "where t.depth < :maxDepth) "
+                + "select id from tree")
+                .setParameter("id", directoryId)
+                .setParameter("maxDepth", maxDepth)
+                .getResultList();
+
+        return ids.stream().map(Number::longValue).collect(Collectors.toList());
+    }
+}
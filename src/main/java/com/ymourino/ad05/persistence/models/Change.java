@@ -0,0 +1,148 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2020 Yago Mouriño Mendaña
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.ymourino.ad05.persistence.models;
+
+import java.io.Serializable;
+import java.time.Instant;
+import javax.persistence.*;
+import javax.validation.constraints.NotNull;
+import org.hibernate.annotations.Immutable;
+
+/**
+ * Clase utilizada para representar una entrada del registro de cambios. Las
+ * entradas las crean los triggers de las tablas files y directories, por lo
+ * que desde el programa solo se leen.
+ *
+ * @author Yago Mouriño Mendaña
+ */
+@Entity
+@Immutable
+@Table(name = "change_log")
+public class Change implements Serializable {
+
+    private static final long serialVersionUID = 2291558837213370764L;
+
+    public static final String ENTITY_FILE = "file";
+    public static final String ENTITY_DIRECTORY = "directory";
+
+    public static final String OPERATION_INSERT = "I";
+    public static final String OPERATION_UPDATE = "U";
+    public static final String OPERATION_DELETE = "D";
+
+    // Entrada única que deja una importación inicial (sobre el directorio
+    // raíz) en lugar de una por cada elemento importado.
+    public static final String OPERATION_IMPORT = "T";
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private long seq;
+
+    // Transacción que hizo el cambio (txid_current()). El número de secuencia
+    // se asigna al escribir, no al confirmar, así que los cambios se leen en
+    // orden de transacción y solo cuando ya no queda en curso ninguna
+    // transacción anterior. Es 0 en los cambios registrados antes de
+    // guardarla.
+    @Column(name = "txid")
+    private Long txid;
+
+    // Cliente que hizo el cambio (el application_name de su conexión). Cada
+    // cliente se salta sus propios cambios, que ya están en su disco.
+    @Column(length = 64)
+    private String origin;
+
+    @NotNull
+    @Column(length = 16)
+    private String entity;
+
+    @NotNull
+    @Column(length = 1)
+    private String operation;
+
+    @NotNull
+    @Column(name = "entity_id")
+    private long entityId;
+
+    // Directorio padre, nombre y ruta completa del elemento en el momento del
+    // cambio. En los borrados son la única forma de saber qué ruta se ha
+    // eliminado.
+    @Column(name = "parent_id")
+    private Long parentId;
+
+    private String name;
+
+    @Column(length = 4096)
+    private String path;
+
+    @NotNull
+    @Column(name = "changed_at")
+    private Instant changedAt;
+
+    public Change() {
+    }
+
+    public long getSeq() {
+        return seq;
+    }
+
+    public long getTxid() {
+        return txid != null ? txid : 0;
+    }
+
+    public String getOrigin() {
+        return origin;
+    }
+
+    public String getEntity() {
+        return entity;
+    }
+
+    public String getOperation() {
+        return operation;
+    }
+
+    public long getEntityId() {
+        return entityId;
+    }
+
+    public Long getParentId() {
+        return parentId;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public Instant getChangedAt() {
+        return changedAt;
+    }
+
+    @Override
+    public String toString() {
+        return txid + "/" + seq + " " + operation + " " + entity + " " + entityId;
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2020 Yago Mouriño Mendaña
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.ymourino.ad05.persistence.models;
+
+import java.io.Serializable;
+import java.time.Instant;
+import javax.persistence.*;
+import javax.validation.constraints.NotNull;
+
+/**
+ * Clase utilizada para representar un fragmento del contenido de los ficheros.
+ * Los fragmentos se identifican por el resumen de su contenido, de forma que
+ * un mismo fragmento se guarda una sola vez aunque aparezca en varios ficheros.
+ *
+ * @author Yago Mouriño Mendaña
+ */
+@Entity
+@Table(name = "chunks")
+public class Chunk implements Serializable {
+
+    private static final long serialVersionUID = 4470923541380652214L;
+
+    @Id
+    @Column(length = 64)
+    private String hash;
+
+    // Tamaño original del fragmento (sin comprimir).
+    @NotNull
+    private int size;
+
+    // Códec con el que están comprimidos los datos (ver Compression). Los
+    // fragmentos anteriores a la compresión no lo tienen comprimido.
+    @Column(columnDefinition = "smallint not null default 0")
+    private short codec;
+
+    @NotNull
+    private byte[] data;
+
+    // Última vez que se guardó o se reutilizó el fragmento. Los fragmentos
+    // sin referencias solo se borran pasado un margen desde entonces (ver
+    // ChunkStore.deleteUnreferenced).
+    @Column(name = "stored_at", insertable = false, updatable = false,
+            columnDefinition = "timestamp with time zone not null default now()")
+    private Instant storedAt;
+
+    public Chunk() {
+    }
+
+    public Chunk(String hash, byte[] data) {
+        this.hash = hash;
+        this.size = data.length;
+        this.data = data;
+    }
+
+    public String getHash() {
+        return hash;
+    }
+
+    public void setHash(String hash) {
+        this.hash = hash;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public void setSize(int size) {
+        this.size = size;
+    }
+
+    public short getCodec() {
+        return codec;
+    }
+
+    public void setCodec(short codec) {
+        this.codec = codec;
+    }
+
+    public byte[] getData() {
+        return data;
+    }
+
+    public void setData(byte[] data) {
+        this.data = data;
+    }
+
+    public Instant getStoredAt() {
+        return storedAt;
+    }
+
+    @Override
+    public String toString() {
+        return getHash();
+    }
+}
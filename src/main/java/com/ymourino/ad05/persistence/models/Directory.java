@@ -23,11 +23,15 @@
  */
 package com.ymourino.ad05.persistence.models;
 
+import com.ymourino.ad05.utils.TreeHash;
 import java.io.Serializable;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.TreeMap;
 import javax.persistence.*;
 import javax.validation.constraints.NotNull;
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
 
 /**
  * Clase utilizada para representar los directorios.
@@ -35,6 +39,7 @@ import javax.validation.constraints.NotNull;
  * @author Yago Mouriño Mendaña
  */
 @Entity
+@Cache(usage = CacheConcurrencyStrategy.READ_WRITE)
 @Table(name = "directories",
         uniqueConstraints = @UniqueConstraint(
                 columnNames = {"parent_id", "name"}
@@ -43,27 +48,58 @@ public class Directory implements IDirectoryEntry, Serializable {
 
     private static final long serialVersionUID = 1323880921025831147L;
 
+    // Se usa una secuencia (en lugar de una columna IDENTITY) para que
+    // Hibernate pueda agrupar las inserciones en lotes JDBC. Cada consulta a
+    // la secuencia reserva este número de identificadores.
+    public static final int ID_ALLOCATION_SIZE = 50;
+
     @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "directories_id_seq")
+    @SequenceGenerator(name = "directories_id_seq", sequenceName = "directories_id_seq",
+            allocationSize = ID_ALLOCATION_SIZE)
     private long id;
 
-    @ManyToOne(cascade = {CascadeType.ALL})
+    // No se propagan las operaciones hacia el padre: al borrar un directorio
+    // no se debe borrar también el directorio que lo contiene.
+    @ManyToOne
     @JoinColumn(name = "parent_id")
     private Directory parent;
 
-    @OneToMany(cascade = {CascadeType.ALL}, mappedBy = "parent")
+    // Solo se propaga el borrado: los elementos nuevos se guardan de forma
+    // explícita (ver ChangeSet), de modo que al hacer flush no se recorre
+    // todo el árbol cargado.
+    @OneToMany(cascade = {CascadeType.REMOVE}, mappedBy = "parent")
     @MapKey(name = "name")
     @OrderBy("name")
+    @Cache(usage = CacheConcurrencyStrategy.READ_WRITE)
     private Map<String, Directory> directories = new TreeMap<>();
 
-    @OneToMany(cascade = {CascadeType.ALL}, mappedBy = "parent")
+    @OneToMany(cascade = {CascadeType.REMOVE}, mappedBy = "parent")
     @MapKey(name = "name")
     @OrderBy("name")
+    @Cache(usage = CacheConcurrencyStrategy.READ_WRITE)
     private Map<String, File> files = new TreeMap<>();
 
     @NotNull
     private String name;
 
+    // Ruta completa (con el nombre), guardada para no tener que recorrer los
+    // antecesores cada vez que se necesita y para poder buscar por ruta o por
+    // prefijo de ruta con un índice (ver Main). Se recalcula al cambiar el
+    // nombre o el padre.
+    @Column(length = 4096)
+    private String path;
+
+    // Resumen agregado del contenido del directorio (ver TreeHash). Se
+    // actualiza cada vez que cambia alguno de sus hijos.
+    @Column(name = "tree_hash", length = 64)
+    private String treeHash;
+
+    // Índice de los directorios ya localizados a partir de este, por su ruta
+    // relativa. Solo existe en memoria y se rellena bajo demanda.
+    @Transient
+    private transient Map<String, Directory> pathIndex;
+
     public Directory() {
     }
 
@@ -73,6 +109,7 @@ public class Directory implements IDirectoryEntry, Serializable {
 
     public Directory(Directory parent, String name) {
         this.name = name;
+        this.path = buildPath(parent, name);
         setParent(parent);
     }
 
@@ -92,6 +129,7 @@ public class Directory implements IDirectoryEntry, Serializable {
     @Override
     public void setParent(Directory parent) {
         this.parent = parent;
+        updatePath();
 
         if (this.parent != null) {
             this.parent.getDirectories().put(this.getName(), this);
@@ -114,6 +152,18 @@ public class Directory implements IDirectoryEntry, Serializable {
         this.files = files;
     }
 
+    /**
+     * Asigna el directorio padre sin añadir este elemento a su colección de
+     * directories. Se utiliza en las importaciones masivas, donde no se conserva
+     * el árbol en memoria.
+     *
+     * @param parent
+     */
+    public void setParentReference(Directory parent) {
+        this.parent = parent;
+        this.path = buildPath(parent, name);
+    }
+
     @Override
     public String getName() {
         return name;
@@ -122,6 +172,35 @@ public class Directory implements IDirectoryEntry, Serializable {
     @Override
     public void setName(String name) {
         this.name = name;
+        updatePath();
+    }
+
+    public String getTreeHash() {
+        return treeHash;
+    }
+
+    public void setTreeHash(String treeHash) {
+        this.treeHash = treeHash;
+    }
+
+    /**
+     * Calcula el resumen agregado a partir de los hijos actuales, sin
+     * guardarlo.
+     *
+     * @return El resumen agregado del directorio.
+     */
+    public String computeTreeHash() {
+        TreeHash hash = new TreeHash();
+
+        for (File file : files.values()) {
+            hash.addFile(file.getName(), file.getSize(), file.getDigest());
+        }
+
+        for (Directory directory : directories.values()) {
+            hash.addDirectory(directory.getName(), directory.getTreeHash());
+        }
+
+        return hash.build();
     }
 
     @Override
@@ -136,19 +215,9 @@ public class Directory implements IDirectoryEntry, Serializable {
      */
     @Override
     public String getPath() {
-        if (parent != null) {
-
-            String parentPath = parent.getPathWithName();
-
-            if (parentPath.equals(java.io.File.separator)) {
-                return parentPath;
-            } else {
-                return parentPath + java.io.File.separator;
-            }
-
-        } else {
-            return "";
-        }
+        return parent != null
+                ? path.substring(0, path.length() - name.length())
+                : "";
     }
 
     /**
@@ -158,109 +227,128 @@ public class Directory implements IDirectoryEntry, Serializable {
      */
     @Override
     public String getPathWithName() {
-        return getPath() + getName();
+        return path;
     }
 
     /**
-     * Dado un fichero, lo añade al directorio actual usando la ruta relativa
-     * proporcionada.
+     * Obtiene la ruta completa de un elemento dada su ruta relativa a este
+     * directorio, tal y como se guarda en la base de datos.
      *
-     * @param relativePath Ruta relativa al directorio actual.
-     * @param file Fichero a añadir.
+     * @param relativePath Ruta relativa (una cadena vacía hace referencia al
+     * directorio actual).
+     * @return La ruta completa.
      */
-    public void addFile(String relativePath, IFile file) {
-        String[] foldersInPath = relativePath.split(java.io.File.separator);
-        String firstFolder;
-        String remainingPath;
+    public String resolvePath(String relativePath) {
+        return relativePath.isEmpty()
+                ? path
+                : joinPath(path, relativePath);
+    }
+
+    /**
+     * Obtiene el prefijo común de las rutas de todos los elementos contenidos
+     * en este directorio, a cualquier profundidad.
+     *
+     * @return La ruta del directorio terminada en separador.
+     */
+    public String getChildPathPrefix() {
+        return path.equals(java.io.File.separator)
+                ? path
+                : path + java.io.File.separator;
+    }
+
+    /**
+     * Recalcula la ruta del directorio y la de los elementos que contiene.
+     * Solo se llama al cambiar el nombre o el padre, nunca al cargar de la
+     * base de datos.
+     */
+    private void updatePath() {
+        String updated = buildPath(parent, name);
 
-        if (foldersInPath.length > 1) {
-            firstFolder = foldersInPath[0];
-            remainingPath = relativePath.substring(firstFolder.length() + 1);
+        if (updated.equals(path)) {
+            return;
+        }
 
-            Directory directory;
+        path = updated;
 
-            if (directories.containsKey(firstFolder)) {
-                directory = directories.get(firstFolder);
-            } else {
-                directory = new Directory(this, firstFolder);
-                directories.put(firstFolder, directory);
-            }
+        for (Directory directory : directories.values()) {
+            directory.updatePath();
+        }
 
-            directory.addFile(remainingPath, file);
-        } else {
-            if (!files.containsKey(file.getName())) {
-                file.setParent(this);
-            }
+        for (File file : files.values()) {
+            file.setParentReference(this);
         }
     }
 
     /**
-     * Comprueba si existe un fichero en el directorio actual dada la ruta
-     * relativa del fichero (con el nombre incluido).
+     * Une la ruta completa de un directorio con una ruta relativa a él.
      *
-     * @param relativePath Ruta relativa del fichero con nombre incluido.
-     * @return True si el fichero existe, false en caso contrario.
+     * @param parentPath Ruta completa del directorio.
+     * @param relativePath Ruta relativa (o nombre) del elemento.
+     * @return La ruta completa del elemento.
      */
-    public boolean existsFile(String relativePath) {
-        return existsFile(relativePath, this);
+    public static String joinPath(String parentPath, String relativePath) {
+        return parentPath.equals(java.io.File.separator)
+                ? parentPath + relativePath
+                : parentPath + java.io.File.separator + relativePath;
+    }
+
+    /**
+     * Construye la ruta completa de un elemento a partir de la de su padre.
+     *
+     * @param parent Directorio padre (null para el directorio raíz).
+     * @param name Nombre del elemento.
+     * @return La ruta completa (con el nombre).
+     */
+    static String buildPath(Directory parent, String name) {
+        if (parent == null) {
+            return name;
+        }
+
+        return parent.resolvePath(name);
+    }
+
+    /**
+     * Dado un fichero, lo añade al directorio actual usando la ruta relativa
+     * proporcionada. Los directorios intermedios que no existan se crean.
+     *
+     * @param relativePath Ruta relativa al directorio actual.
+     * @param file Fichero a añadir.
+     */
+    public void addFile(String relativePath, IFile file) {
+        Directory directory = getOrCreateDirectory(getParentPath(relativePath));
+
+        if (!directory.getFiles().containsKey(file.getName())) {
+            file.setParent(directory);
+        }
     }
 
     /**
-     * Comprueba si existe un fichero en un directorio.
+     * Comprueba si existe un fichero en el directorio actual dada la ruta
+     * relativa del fichero (con el nombre incluido).
      *
      * @param relativePath Ruta relativa del fichero con nombre incluido.
-     * @param directory Directorio donde se debe comprobar la existencia del
-     * fichero.
      * @return True si el fichero existe, false en caso contrario.
      */
-    private boolean existsFile(String relativePath, Directory directory) {
-        String[] foldersInPath = relativePath.split(java.io.File.separator);
-
-        if (foldersInPath.length > 1) {
-            if (directory.getDirectories().containsKey(foldersInPath[0])) {
-                return existsFile(
-                        relativePath.substring(foldersInPath[0].length()
-                                + java.io.File.separator.length()),
-                        directory.getDirectories().get(foldersInPath[0]));
-            } else {
-                return false;
-            }
-        } else {
-            return directory.getFiles().containsKey(foldersInPath[0]);
-        }
+    public boolean existsFile(String relativePath) {
+        return getFile(relativePath) != null;
     }
 
     /**
      * Dado un directorio, lo añade al directorio actual usando la ruta relativa
-     * proporcionada.
+     * proporcionada. Los directorios intermedios que no existan se crean.
      *
      * @param relativePath Ruta relativa al directorio actual.
      * @param directory Directorio a añadir.
      */
     public void addDirectory(String relativePath, IDirectoryEntry directory) {
-        String[] foldersInPath = relativePath.split(java.io.File.separator);
-        String firstFolder;
-        String remainingPath;
-
-        if (foldersInPath.length > 1) {
-            firstFolder = foldersInPath[0];
-            remainingPath = relativePath.substring(firstFolder.length() + 1);
-
-            Directory newDirectory;
+        Directory parentDirectory = getOrCreateDirectory(getParentPath(relativePath));
 
-            if (directories.containsKey(firstFolder)) {
-                newDirectory = directories.get(firstFolder);
-            } else {
-                newDirectory = new Directory(this, firstFolder);
-                directories.put(firstFolder, newDirectory);
-            }
-
-            newDirectory.addDirectory(remainingPath, directory);
-        } else {
-            if (!directories.containsKey(directory.getName())) {
-                directory.setParent(this);
-            }
+        if (!parentDirectory.getDirectories().containsKey(directory.getName())) {
+            directory.setParent(parentDirectory);
         }
+
+        Directory added = parentDirectory.getDirectories().get(directory.getName());
+        getPathIndex().put(relativePath, added);
     }
 
     /**
@@ -271,32 +359,133 @@ public class Directory implements IDirectoryEntry, Serializable {
      * @return True si el directorio existe, false en caso contrario.
      */
     public boolean existsDirectory(String relativePath) {
-        return existsDirectory(relativePath, this);
+        return getDirectory(relativePath) != null;
     }
 
     /**
-     * Comprueba si existe un directorio en otro directorio.
+     * Obtiene un fichero del directorio actual dada su ruta relativa (con el
+     * nombre incluido).
      *
-     * @param relativePath Ruta relativa del directorio con nombre incluido.
-     * @param directory Directorio donde se debe comprobar la existencia del
-     * directorio indicado en la ruta.
-     * @return True si el directorio existe, false en caso contrario.
+     * @param relativePath Ruta relativa del fichero con nombre incluido.
+     * @return El fichero, o null si no existe.
+     */
+    public File getFile(String relativePath) {
+        Directory directory = getDirectory(getParentPath(relativePath));
+        return directory != null
+                ? directory.getFiles().get(getLastSegment(relativePath))
+                : null;
+    }
+
+    /**
+     * Obtiene un directorio del directorio actual dada su ruta relativa (con
+     * el nombre incluido).
+     *
+     * Los directorios encontrados se guardan en un índice por ruta, por lo que
+     * solo la primera búsqueda de cada directorio recorre el árbol (y solo
+     * desde el antecesor más cercano que ya esté en el índice).
+     *
+     * @param relativePath Ruta relativa del directorio con nombre incluido. Una
+     * cadena vacía hace referencia al directorio actual.
+     * @return El directorio, o null si no existe.
      */
-    private boolean existsDirectory(String relativePath, Directory directory) {
-        String[] foldersInPath = relativePath.split(java.io.File.separator);
-
-        if (foldersInPath.length > 1) {
-            if (directory.getDirectories().containsKey(foldersInPath[0])) {
-                return existsDirectory(
-                        relativePath.substring(foldersInPath[0].length()
-                                + java.io.File.separator.length()),
-                        directory.getDirectories().get(foldersInPath[0]));
-            } else {
-                return false;
+    public Directory getDirectory(String relativePath) {
+        Map<String, Directory> index = getPathIndex();
+        Directory directory = index.get(relativePath);
+
+        if (directory == null) {
+            Directory parentDirectory = getDirectory(getParentPath(relativePath));
+
+            if (parentDirectory != null) {
+                directory = parentDirectory.getDirectories().get(getLastSegment(relativePath));
+
+                if (directory != null) {
+                    index.put(relativePath, directory);
+                }
             }
-        } else {
-            return directory.getFiles().containsKey(foldersInPath[0]);
         }
+
+        return directory;
+    }
+
+    /**
+     * Quita un fichero del directorio actual dada su ruta relativa (con el
+     * nombre incluido).
+     *
+     * @param relativePath Ruta relativa del fichero con nombre incluido.
+     * @return El fichero quitado, o null si no existía.
+     */
+    public File removeFile(String relativePath) {
+        Directory directory = getDirectory(getParentPath(relativePath));
+        return directory != null
+                ? directory.getFiles().remove(getLastSegment(relativePath))
+                : null;
+    }
+
+    /**
+     * Quita un directorio (con todo su contenido) del directorio actual dada
+     * su ruta relativa (con el nombre incluido).
+     *
+     * @param relativePath Ruta relativa del directorio con nombre incluido.
+     * @return El directorio quitado, o null si no existía.
+     */
+    public Directory removeDirectory(String relativePath) {
+        if (relativePath.isEmpty()) {
+            return null;
+        }
+
+        Directory parentDirectory = getDirectory(getParentPath(relativePath));
+
+        if (parentDirectory == null) {
+            return null;
+        }
+
+        Directory removed = parentDirectory.getDirectories().remove(getLastSegment(relativePath));
+
+        if (removed != null) {
+            String prefix = relativePath + java.io.File.separator;
+            getPathIndex().keySet().removeIf((path)
+                    -> path.equals(relativePath) || path.startsWith(prefix));
+        }
+
+        return removed;
+    }
+
+    /**
+     * Obtiene un directorio dada su ruta relativa, creando los que falten.
+     *
+     * @param relativePath
+     * @return
+     */
+    private Directory getOrCreateDirectory(String relativePath) {
+        Directory directory = getDirectory(relativePath);
+
+        if (directory == null) {
+            directory = new Directory(
+                    getOrCreateDirectory(getParentPath(relativePath)),
+                    getLastSegment(relativePath));
+            getPathIndex().put(relativePath, directory);
+        }
+
+        return directory;
+    }
+
+    private Map<String, Directory> getPathIndex() {
+        if (pathIndex == null) {
+            pathIndex = new HashMap<>();
+            pathIndex.put("", this);
+        }
+
+        return pathIndex;
+    }
+
+    private static String getParentPath(String relativePath) {
+        int index = relativePath.lastIndexOf(java.io.File.separatorChar);
+        return index >= 0 ? relativePath.substring(0, index) : "";
+    }
+
+    private static String getLastSegment(String relativePath) {
+        int index = relativePath.lastIndexOf(java.io.File.separatorChar);
+        return index >= 0 ? relativePath.substring(index + 1) : relativePath;
     }
 
     @Override
@@ -25,8 +25,12 @@ package com.ymourino.ad05.persistence.models;
 
 import java.io.Serializable;
 import java.sql.Blob;
+import java.util.ArrayList;
+import java.util.List;
 import javax.persistence.*;
 import javax.validation.constraints.NotNull;
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
 
 /**
  * Clase utilizada para representar los ficheros.
@@ -34,43 +38,85 @@ import javax.validation.constraints.NotNull;
  * @author Yago Mouriño Mendaña
  */
 @Entity
+@Cache(usage = CacheConcurrencyStrategy.READ_WRITE)
 @Table(name = "files",
         uniqueConstraints = @UniqueConstraint(
                 columnNames = {"parent_id", "name"}
-        ))
+        ),
+        // Permite resolver los listados de un directorio (nombre y tamaño)
+        // solo con el índice.
+        indexes = @Index(name = "files_parent_name_size_idx",
+                columnList = "parent_id, name, size"))
 public class File implements IFile, Serializable {
 
     private static final long serialVersionUID = -9127316768330902475L;
 
+    // Se usa una secuencia (en lugar de una columna IDENTITY) para que
+    // Hibernate pueda agrupar las inserciones en lotes JDBC. Cada consulta a
+    // la secuencia reserva este número de identificadores.
+    public static final int ID_ALLOCATION_SIZE = 50;
+
     @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "files_id_seq")
+    @SequenceGenerator(name = "files_id_seq", sequenceName = "files_id_seq",
+            allocationSize = ID_ALLOCATION_SIZE)
     private long id;
 
     @NotNull
-    @ManyToOne(cascade = {CascadeType.ALL})
+    // No se propagan las operaciones hacia el padre: al borrar un fichero no
+    // se debe borrar también el directorio que lo contiene.
+    @ManyToOne
     @JoinColumn(name = "parent_id")
     private Directory parent;
 
     @NotNull
     private String name;
 
+    // Ruta completa (con el nombre), guardada para poder buscar por ruta o
+    // por prefijo de ruta con un índice (ver Main). Se recalcula al cambiar
+    // el nombre o el padre.
+    @Column(length = 4096)
+    private String path;
+
     @NotNull
     private long size;
 
-    @NotNull
-    private Blob content;
+    // Fecha de última modificación (en milisegundos) del fichero en disco
+    // cuando se subió. Junto con el tamaño permite saber, sin leer el
+    // contenido, si el fichero puede haber cambiado.
+    private Long lastModified;
+
+    // Resumen (SHA-256 en hexadecimal) del contenido del fichero.
+    @Column(length = 64)
+    private String digest;
+
+    // Contenido que no está en fragmentos (ficheros pequeños y ficheros
+    // antiguos). Se carga solo cuando se accede a él.
+    @OneToOne(fetch = FetchType.LAZY, cascade = {CascadeType.ALL}, orphanRemoval = true)
+    @JoinColumn(name = "content_id")
+    private FileContent fileContent;
+
+    // Lista ordenada de los resúmenes de los fragmentos (tabla chunks) que
+    // forman el contenido del fichero.
+    @ElementCollection
+    @Cache(usage = CacheConcurrencyStrategy.READ_WRITE)
+    @CollectionTable(name = "file_chunks",
+            joinColumns = @JoinColumn(name = "file_id"))
+    @OrderColumn(name = "position")
+    @Column(name = "chunk_hash", length = 64)
+    private List<String> chunks = new ArrayList<>();
 
     public File() {
     }
 
-    public File(String name, long size, Blob content) {
-        this(null, name, size, content);
+    public File(String name, long size, List<String> chunks) {
+        this(null, name, size);
+        this.chunks = chunks;
     }
 
-    public File(Directory parent, String name, long size, Blob content) {
+    public File(Directory parent, String name, long size) {
         this.name = name;
         this.size = size;
-        this.content = content;
         setParent(parent);
     }
 
@@ -90,12 +136,25 @@ public class File implements IFile, Serializable {
     @Override
     public void setParent(Directory parent) {
         this.parent = parent;
+        this.path = Directory.buildPath(parent, name);
 
         if (this.parent != null) {
             this.parent.getFiles().put(this.getName(), this);
         }
     }
 
+    /**
+     * Asigna el directorio padre sin añadir este elemento a su colección de
+     * files. Se utiliza en las importaciones masivas, donde no se conserva
+     * el árbol en memoria.
+     *
+     * @param parent
+     */
+    public void setParentReference(Directory parent) {
+        this.parent = parent;
+        this.path = Directory.buildPath(parent, name);
+    }
+
     @Override
     public String getName() {
         return name;
@@ -104,6 +163,7 @@ public class File implements IFile, Serializable {
     @Override
     public void setName(String name) {
         this.name = name;
+        this.path = Directory.buildPath(parent, name);
     }
 
     @Override
@@ -115,12 +175,80 @@ public class File implements IFile, Serializable {
         this.size = size;
     }
 
-    public Blob getContent() {
-        return content;
+    public Long getLastModified() {
+        return lastModified;
+    }
+
+    public void setLastModified(Long lastModified) {
+        this.lastModified = lastModified;
+    }
+
+    public String getDigest() {
+        return digest;
+    }
+
+    public void setDigest(String digest) {
+        this.digest = digest;
+    }
+
+    public FileContent getFileContent() {
+        return fileContent;
+    }
+
+    public void setFileContent(FileContent fileContent) {
+        this.fileContent = fileContent;
+    }
+
+    /**
+     * Obtiene el contenido guardado en la propia base de datos (sin
+     * fragmentos) de los ficheros pequeños. Carga el contenido si no lo está.
+     *
+     * @return El contenido, o null si el fichero no se guarda así.
+     */
+    public byte[] getInlineData() {
+        return fileContent != null ? fileContent.getInlineData() : null;
+    }
+
+    /**
+     * Obtiene el Blob de los ficheros guardados antes de existir los
+     * fragmentos. Carga el contenido si no lo está.
+     *
+     * @return El Blob, o null si el fichero no se guarda así.
+     */
+    public Blob getBlobContent() {
+        return fileContent != null ? fileContent.getData() : null;
     }
 
-    public void setContent(Blob content) {
-        this.content = content;
+    public List<String> getChunks() {
+        return chunks;
+    }
+
+    public void setChunks(List<String> chunks) {
+        this.chunks = chunks;
+    }
+
+    /**
+     * Sustituye el contenido de la lista de fragmentos modificando solo las
+     * posiciones que cambian. Al no reemplazar la colección, Hibernate solo
+     * actualiza en file_chunks esas posiciones (y las que sobren o falten al
+     * final), en lugar de borrar e insertar la lista entera.
+     *
+     * @param updated Nueva lista ordenada de fragmentos.
+     */
+    public void updateChunks(List<String> updated) {
+        int common = Math.min(chunks.size(), updated.size());
+
+        for (int i = 0; i < common; i++) {
+            if (!chunks.get(i).equals(updated.get(i))) {
+                chunks.set(i, updated.get(i));
+            }
+        }
+
+        if (chunks.size() > updated.size()) {
+            chunks.subList(updated.size(), chunks.size()).clear();
+        } else {
+            chunks.addAll(updated.subList(common, updated.size()));
+        }
     }
 
     /**
@@ -130,11 +258,7 @@ public class File implements IFile, Serializable {
      */
     @Override
     public String getPath() {
-        if (parent.getPathWithName().equals(java.io.File.separator)) {
-            return parent.getPathWithName();
-        } else {
-            return parent.getPathWithName() + java.io.File.separator;
-        }
+        return path.substring(0, path.length() - name.length());
     }
 
     /**
@@ -144,7 +268,7 @@ public class File implements IFile, Serializable {
      */
     @Override
     public String getPathWithName() {
-        return getPath() + getName();
+        return path;
     }
 
     @Override
@@ -0,0 +1,89 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2020 Yago Mouriño Mendaña
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.ymourino.ad05.persistence.models;
+
+import java.io.Serializable;
+import java.sql.Blob;
+import javax.persistence.*;
+
+/**
+ * Contenido de un fichero que no está guardado en fragmentos: el de los
+ * ficheros pequeños (guardado en la propia fila) y el de los ficheros subidos
+ * antes de existir los fragmentos (un Blob).
+ *
+ * Está separado de File para que las consultas de metadatos (árbol, listados,
+ * comprobaciones de existencia) nunca lean contenido: solo se carga al
+ * restaurar o subir un fichero.
+ *
+ * @author Yago Mouriño Mendaña
+ */
+@Entity
+@Table(name = "file_contents")
+public class FileContent implements Serializable {
+
+    private static final long serialVersionUID = 2741502786374218604L;
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "file_contents_id_seq")
+    @SequenceGenerator(name = "file_contents_id_seq", sequenceName = "file_contents_id_seq",
+            allocationSize = File.ID_ALLOCATION_SIZE)
+    private long id;
+
+    @Column(name = "inline_data")
+    private byte[] inlineData;
+
+    // Contenido de los ficheros guardados antes de existir los fragmentos.
+    private Blob data;
+
+    public FileContent() {
+    }
+
+    public FileContent(byte[] inlineData) {
+        this.inlineData = inlineData;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public void setId(long id) {
+        this.id = id;
+    }
+
+    public byte[] getInlineData() {
+        return inlineData;
+    }
+
+    public void setInlineData(byte[] inlineData) {
+        this.inlineData = inlineData;
+    }
+
+    public Blob getData() {
+        return data;
+    }
+
+    public void setData(Blob data) {
+        this.data = data;
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2020 Yago Mouriño Mendaña
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.ymourino.ad05.ui;
+
+import java.util.List;
+
+/**
+ * Nodo del árbol de carpetas de la interfaz. Solo guarda los datos necesarios
+ * para mostrarlo; sus hijos se cargan desde la base de datos la primera vez
+ * que se despliega.
+ *
+ * @author Yago Mouriño Mendaña
+ */
+public class DirectoryNode {
+
+    private final DirectoryNode parent;
+    private final long id;
+    private final String name;
+    private final boolean hasChildren;
+    private List<DirectoryNode> children;
+    private boolean loading = false;
+
+    public DirectoryNode(DirectoryNode parent, long id, String name, boolean hasChildren) {
+        this.parent = parent;
+        this.id = id;
+        this.name = name;
+        this.hasChildren = hasChildren;
+    }
+
+    public DirectoryNode getParent() {
+        return parent;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public boolean hasChildren() {
+        return hasChildren;
+    }
+
+    /**
+     * Hijos cargados hasta el momento, o null si todavía no se han pedido.
+     *
+     * @return
+     */
+    public List<DirectoryNode> getChildren() {
+        return children;
+    }
+
+    public void setChildren(List<DirectoryNode> children) {
+        this.children = children;
+    }
+
+    public boolean isLoading() {
+        return loading;
+    }
+
+    public void setLoading(boolean loading) {
+        this.loading = loading;
+    }
+
+    @Override
+    public String toString() {
+        return getName();
+    }
+}
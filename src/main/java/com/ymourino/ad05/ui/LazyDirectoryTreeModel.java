@@ -0,0 +1,243 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2020 Yago Mouriño Mendaña
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.ymourino.ad05.ui;
+
+import com.ymourino.ad05.persistence.IJPAUtil;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.swing.SwingWorker;
+import javax.swing.event.EventListenerList;
+import javax.swing.event.TreeExpansionEvent;
+import javax.swing.event.TreeModelEvent;
+import javax.swing.event.TreeModelListener;
+import javax.swing.event.TreeWillExpandListener;
+import javax.swing.tree.TreeModel;
+import javax.swing.tree.TreePath;
+
+/**
+ * Modelo del árbol de carpetas que carga los hijos de cada carpeta desde la
+ * base de datos solo cuando se va a desplegar. La carga se hace por páginas y
+ * fuera del hilo de eventos de Swing, añadiendo los nodos al árbol según
+ * llegan.
+ *
+ * Todos los métodos, salvo la consulta a la base de datos, se ejecutan en el
+ * hilo de eventos de Swing.
+ *
+ * @author Yago Mouriño Mendaña
+ */
+public class LazyDirectoryTreeModel implements TreeModel, TreeWillExpandListener {
+
+    private static final int PAGE_SIZE = 500;
+
+    private final IJPAUtil hibernateUtil;
+    private final DirectoryNode root;
+    private final EventListenerList listeners = new EventListenerList();
+
+    public LazyDirectoryTreeModel(IJPAUtil hibernateUtil, DirectoryNode root) {
+        this.hibernateUtil = hibernateUtil;
+        this.root = root;
+    }
+
+    @Override
+    public Object getRoot() {
+        return root;
+    }
+
+    @Override
+    public Object getChild(Object parent, int index) {
+        return ((DirectoryNode) parent).getChildren().get(index);
+    }
+
+    @Override
+    public int getChildCount(Object parent) {
+        List<DirectoryNode> children = ((DirectoryNode) parent).getChildren();
+        return children != null ? children.size() : 0;
+    }
+
+    @Override
+    public boolean isLeaf(Object node) {
+        return !((DirectoryNode) node).hasChildren();
+    }
+
+    @Override
+    public void valueForPathChanged(TreePath path, Object newValue) {
+        // El árbol no es editable.
+    }
+
+    @Override
+    public int getIndexOfChild(Object parent, Object child) {
+        List<DirectoryNode> children = ((DirectoryNode) parent).getChildren();
+        return children != null ? children.indexOf(child) : -1;
+    }
+
+    @Override
+    public void addTreeModelListener(TreeModelListener l) {
+        listeners.add(TreeModelListener.class, l);
+    }
+
+    @Override
+    public void removeTreeModelListener(TreeModelListener l) {
+        listeners.remove(TreeModelListener.class, l);
+    }
+
+    @Override
+    public void treeWillExpand(TreeExpansionEvent event) {
+        loadChildren((DirectoryNode) event.getPath().getLastPathComponent());
+    }
+
+    @Override
+    public void treeWillCollapse(TreeExpansionEvent event) {
+    }
+
+    /**
+     * Carga en segundo plano los hijos de un nodo, si no se han cargado ya.
+     *
+     * @param node
+     */
+    public void loadChildren(DirectoryNode node) {
+        if (node.getChildren() != null || node.isLoading() || !node.hasChildren()) {
+            return;
+        }
+
+        // Si la carga falla, el nodo vuelve a quedar sin hijos cargados y se
+        // intenta de nuevo la próxima vez que se despliegue. Las páginas que
+        // lleguen de una carga anterior se descartan.
+        List<DirectoryNode> children = new ArrayList<>();
+        node.setLoading(true);
+        node.setChildren(children);
+
+        new SwingWorker<Void, List<DirectoryNode>>() {
+            @Override
+            protected Void doInBackground() throws Exception {
+                String after = "";
+                List<DirectoryNode> page;
+
+                do {
+                    page = fetchPage(node, after);
+
+                    if (!page.isEmpty()) {
+                        publish(page);
+                        after = page.get(page.size() - 1).getName();
+                    }
+                } while (page.size() == PAGE_SIZE);
+
+                return null;
+            }
+
+            @Override
+            protected void process(List<List<DirectoryNode>> pages) {
+                if (node.getChildren() != children) {
+                    return;
+                }
+
+                for (List<DirectoryNode> page : pages) {
+                    int start = children.size();
+                    children.addAll(page);
+
+                    int[] indices = new int[page.size()];
+
+                    for (int i = 0; i < indices.length; i++) {
+                        indices[i] = start + i;
+                    }
+
+                    fireTreeNodesInserted(node, indices, page.toArray());
+                }
+            }
+
+            @Override
+            protected void done() {
+                node.setLoading(false);
+
+                try {
+                    get();
+                } catch (InterruptedException | ExecutionException ex) {
+                    Logger.getLogger(LazyDirectoryTreeModel.class.getName()).log(Level.SEVERE, null, ex);
+
+                    node.setChildren(null);
+                    fireTreeStructureChanged(node);
+                }
+            }
+        }.execute();
+    }
+
+    /**
+     * Obtiene de la base de datos una página de subcarpetas de un nodo,
+     * ordenadas por nombre, a partir del nombre indicado (sin incluirlo).
+     *
+     * @param node
+     * @param after
+     * @return
+     * @throws Exception
+     */
+    private List<DirectoryNode> fetchPage(DirectoryNode node, String after) throws Exception {
+        List<Object[]> rows = hibernateUtil.inTransaction((session)
+                -> session.createQuery(
+                        "select d.id, d.name, "
+                        + "case when exists (select c.id from Directory c where c.parent = d) "
+                        + "then 1 else 0 end "
+                        + "from Directory d "
+                        + "where d.parent.id = :parent and d.name > :after "
+                        + "order by d.name",
+                        Object[].class)
+                        .setParameter("parent", node.getId())
+                        .setParameter("after", after)
+                        .setMaxResults(PAGE_SIZE)
+                        .setReadOnly(true)
+                        .getResultList());
+
+        List<DirectoryNode> page = new ArrayList<>(rows.size());
+
+        for (Object[] row : rows) {
+            page.add(new DirectoryNode(node, (Long) row[0], (String) row[1],
+                    ((Number) row[2]).intValue() > 0));
+        }
+
+        return page;
+    }
+
+    private void fireTreeNodesInserted(DirectoryNode parent, int[] indices, Object[] children) {
+        TreeModelEvent event = new TreeModelEvent(this, getPath(parent), indices, children);
+
+        for (TreeModelListener listener : listeners.getListeners(TreeModelListener.class)) {
+            listener.treeNodesInserted(event);
+        }
+    }
+
+    private void fireTreeStructureChanged(DirectoryNode node) {
+        TreeModelEvent event = new TreeModelEvent(this, getPath(node));
+
+        for (TreeModelListener listener : listeners.getListeners(TreeModelListener.class)) {
+            listener.treeStructureChanged(event);
+        }
+    }
+
+    private TreePath getPath(DirectoryNode node) {
+        return node.getParent() == null
+                ? new TreePath(node)
+                : getPath(node.getParent()).pathByAddingChild(node);
+    }
+}
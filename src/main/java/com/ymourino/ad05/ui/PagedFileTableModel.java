@@ -0,0 +1,316 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2020 Yago Mouriño Mendaña
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.ymourino.ad05.ui;
+
+import com.ymourino.ad05.persistence.IJPAUtil;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.swing.SwingUtilities;
+import javax.swing.table.AbstractTableModel;
+import org.hibernate.Session;
+import org.hibernate.query.Query;
+
+/**
+ * Modelo de la tabla de ficheros que no carga todos los ficheros de la
+ * carpeta, sino solo las páginas que se van mostrando. Las páginas se piden a
+ * la base de datos en segundo plano (paginación por clave sobre el nombre) y
+ * se guardan unas pocas en una caché; mientras una página no está disponible,
+ * sus celdas aparecen vacías.
+ *
+ * Cada página se busca a partir del punto conocido más cercano: el primer o el
+ * último nombre de una página ya cargada, o el principio o el final de la
+ * carpeta. Solo las filas entre ese punto y la página se saltan con un
+ * desplazamiento, así que desplazarse por la tabla cuesta lo mismo en
+ * cualquier parte de la carpeta; un salto directo al medio de una carpeta
+ * enorme, igual que contar sus filas, sigue recorriendo las filas saltadas.
+ *
+ * Todos los métodos públicos se ejecutan en el hilo de eventos de Swing.
+ *
+ * @author Yago Mouriño Mendaña
+ */
+public class PagedFileTableModel extends AbstractTableModel {
+
+    private static final long serialVersionUID = 5319640213775932914L;
+
+    private static final int PAGE_SIZE = 200;
+    private static final int CACHED_PAGES = 16;
+    private static final String[] COLUMN_NAMES = {"Fichero", "Tamaño en bytes"};
+
+    private final transient IJPAUtil hibernateUtil;
+    private final transient ExecutorService loader = Executors.newSingleThreadExecutor((r) -> {
+        Thread thread = new Thread(r, "file-table-loader");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final transient Map<Integer, List<Object[]>> pages
+            = new LinkedHashMap<Integer, List<Object[]>>(CACHED_PAGES, 0.75f, true) {
+        private static final long serialVersionUID = -3012868930530468347L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, List<Object[]>> eldest) {
+            return size() > CACHED_PAGES;
+        }
+    };
+
+    // Primer y último nombre de cada página ya cargada, para pedir las
+    // páginas cercanas por clave en lugar de por desplazamiento.
+    private final transient Map<Integer, String> firstNames = new HashMap<>();
+    private final transient Map<Integer, String> lastNames = new HashMap<>();
+    private final transient Set<Integer> pendingPages = new HashSet<>();
+
+    private Long directoryId = null;
+    private int rowCount = 0;
+
+    // Se incrementa cada vez que cambia la carpeta, para descartar las
+    // respuestas que lleguen de la carpeta anterior.
+    private int generation = 0;
+
+    public PagedFileTableModel(IJPAUtil hibernateUtil) {
+        this.hibernateUtil = hibernateUtil;
+    }
+
+    /**
+     * Cambia la carpeta cuyos ficheros se muestran.
+     *
+     * @param directoryId Identificador de la carpeta, o null para vaciar la
+     * tabla.
+     */
+    public void setDirectory(Long directoryId) {
+        this.directoryId = directoryId;
+        this.rowCount = 0;
+        this.generation++;
+        pages.clear();
+        firstNames.clear();
+        lastNames.clear();
+        pendingPages.clear();
+        fireTableDataChanged();
+
+        if (directoryId != null) {
+            int requestGeneration = generation;
+
+            loader.execute(() -> {
+                try {
+                    Long count = hibernateUtil.inTransaction((session)
+                            -> session.createQuery(
+                                    "select count(f.id) from File f where f.parent.id = :parent",
+                                    Long.class)
+                                    .setParameter("parent", directoryId)
+                                    .uniqueResult());
+
+                    SwingUtilities.invokeLater(() -> {
+                        if (requestGeneration == generation) {
+                            rowCount = count.intValue();
+                            fireTableDataChanged();
+                        }
+                    });
+                } catch (Exception ex) {
+                    Logger.getLogger(PagedFileTableModel.class.getName()).log(Level.SEVERE, null, ex);
+                }
+            });
+        }
+    }
+
+    @Override
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    @Override
+    public int getColumnCount() {
+        return COLUMN_NAMES.length;
+    }
+
+    @Override
+    public String getColumnName(int column) {
+        return COLUMN_NAMES[column];
+    }
+
+    @Override
+    public Class<?> getColumnClass(int columnIndex) {
+        return columnIndex == 0 ? String.class : Long.class;
+    }
+
+    @Override
+    public Object getValueAt(int rowIndex, int columnIndex) {
+        int page = rowIndex / PAGE_SIZE;
+        List<Object[]> rows = pages.get(page);
+
+        if (rows == null) {
+            requestPage(page);
+            return null;
+        }
+
+        int index = rowIndex % PAGE_SIZE;
+        return index < rows.size() ? rows.get(index)[columnIndex] : null;
+    }
+
+    /**
+     * Pide en segundo plano una página, si no se ha pedido ya.
+     *
+     * @param page
+     */
+    private void requestPage(int page) {
+        if (directoryId == null || !pendingPages.add(page)) {
+            return;
+        }
+
+        long requestDirectoryId = directoryId;
+        int requestGeneration = generation;
+        PageQuery pageQuery = planPage(page);
+
+        loader.execute(() -> {
+            try {
+                List<Object[]> rows = hibernateUtil.inTransaction((session)
+                        -> pageQuery.fetch(session, requestDirectoryId));
+
+                SwingUtilities.invokeLater(() -> {
+                    if (requestGeneration == generation) {
+                        pendingPages.remove(page);
+                        pages.put(page, rows);
+
+                        if (!rows.isEmpty()) {
+                            firstNames.put(page, (String) rows.get(0)[0]);
+                            lastNames.put(page, (String) rows.get(rows.size() - 1)[0]);
+                        }
+
+                        int first = page * PAGE_SIZE;
+                        int last = Math.min(first + PAGE_SIZE, rowCount) - 1;
+
+                        if (last >= first) {
+                            fireTableRowsUpdated(first, last);
+                        }
+                    }
+                });
+            } catch (Exception ex) {
+                Logger.getLogger(PagedFileTableModel.class.getName()).log(Level.SEVERE, null, ex);
+
+                // La página se podrá volver a pedir la próxima vez que se
+                // muestre.
+                SwingUtilities.invokeLater(() -> {
+                    if (requestGeneration == generation) {
+                        pendingPages.remove(page);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Elige cómo pedir una página: desde el principio o el final de la
+     * carpeta, o desde el nombre que limita la página cargada más cercana,
+     * según desde dónde haya menos filas que saltar.
+     *
+     * @param page
+     * @return
+     */
+    private PageQuery planPage(int page) {
+        int pageStart = page * PAGE_SIZE;
+        int pageLength = Math.min(PAGE_SIZE, rowCount - pageStart);
+        PageQuery best = new PageQuery(null, false, pageStart, pageLength);
+
+        int fromEnd = rowCount - pageStart - pageLength;
+
+        if (fromEnd < best.skip) {
+            best = new PageQuery(null, true, fromEnd, pageLength);
+        }
+
+        for (Map.Entry<Integer, String> loaded : lastNames.entrySet()) {
+            int skip = (page - loaded.getKey() - 1) * PAGE_SIZE;
+
+            if (loaded.getKey() < page && skip < best.skip) {
+                best = new PageQuery(loaded.getValue(), false, skip, pageLength);
+            }
+        }
+
+        // Las páginas anteriores a una ya cargada están completas.
+        for (Map.Entry<Integer, String> loaded : firstNames.entrySet()) {
+            int skip = (loaded.getKey() - page - 1) * PAGE_SIZE;
+
+            if (loaded.getKey() > page && skip < best.skip) {
+                best = new PageQuery(loaded.getValue(), true, skip, pageLength);
+            }
+        }
+
+        return best;
+    }
+
+    /**
+     * Consulta de una página: las filas que siguen (o preceden, en orden
+     * descendente) a un nombre, saltando un número de filas.
+     */
+    private static class PageQuery {
+
+        private final String key;
+        private final boolean descending;
+        private final int skip;
+        private final int limit;
+
+        PageQuery(String key, boolean descending, int skip, int limit) {
+            this.key = key;
+            this.descending = descending;
+            this.skip = skip;
+            this.limit = limit;
+        }
+
+        List<Object[]> fetch(Session session, long directoryId) {
+            String condition = key == null
+                    ? ""
+                    : descending ? "and f.name < :key " : "and f.name > :key ";
+
+            Query<Object[]> query = session.createQuery(
+                    "select f.name, f.size from File f "
+                    + "where f.parent.id = :parent " + condition
+                    + "order by f.name" + (descending ? " desc" : ""),
+                    Object[].class)
+                    .setParameter("parent", directoryId)
+                    .setFirstResult(skip)
+                    .setMaxResults(limit)
+                    .setReadOnly(true);
+
+            if (key != null) {
+                query.setParameter("key", key);
+            }
+
+            List<Object[]> rows = query.getResultList();
+
+            if (descending) {
+                rows = new ArrayList<>(rows);
+                Collections.reverse(rows);
+            }
+
+            return rows;
+        }
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2020 Yago Mouriño Mendaña
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.ymourino.ad05.utils;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Clase con métodos estáticos para comprimir y descomprimir los fragmentos del
+ * contenido de los ficheros. Cada fragmento guarda el códec con el que se ha
+ * comprimido, por lo que se pueden mezclar fragmentos comprimidos y sin
+ * comprimir.
+ *
+ * @author Yago Mouriño Mendaña
+ */
+public class Compression {
+
+    public static final short CODEC_NONE = 0;
+    public static final short CODEC_DEFLATE = 1;
+
+    // Solo se guarda comprimido un fragmento si ocupa como mucho este
+    // porcentaje del original. Si no, no compensa descomprimirlo al leerlo.
+    private static final int MAX_RATIO_PERCENT = 90;
+
+    private Compression() {
+    }
+
+    /**
+     * Obtiene el códec a partir de su nombre en la configuración.
+     *
+     * @param name "deflate" o "none".
+     * @return
+     */
+    public static short codecFromName(String name) {
+        if (name == null || name.equalsIgnoreCase("none")) {
+            return CODEC_NONE;
+        } else if (name.equalsIgnoreCase("deflate")) {
+            return CODEC_DEFLATE;
+        }
+
+        throw new IllegalArgumentException("Códec de compresión desconocido: '" + name + "'.");
+    }
+
+    /**
+     * Comprime un fragmento. La compresión se abandona en cuanto la salida
+     * supera el tamaño máximo aceptable, por lo que un fragmento
+     * incompresible apenas cuesta tiempo y nunca necesita más memoria que el
+     * propio fragmento.
+     *
+     * @param codec
+     * @param level Nivel de compresión (1 es el más rápido).
+     * @param data
+     * @return Los datos comprimidos, o null si no compensa comprimirlos.
+     */
+    public static byte[] compress(short codec, int level, byte[] data) {
+        if (codec == CODEC_NONE || data.length == 0) {
+            return null;
+        }
+
+        int limit = (int) ((long) data.length * MAX_RATIO_PERCENT / 100);
+        byte[] output = new byte[limit];
+        Deflater deflater = new Deflater(level);
+
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            int length = 0;
+
+            while (!deflater.finished()) {
+                if (length == output.length) {
+                    return null;
+                }
+
+                length += deflater.deflate(output, length, output.length - length);
+            }
+
+            return Arrays.copyOf(output, length);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Descomprime un fragmento.
+     *
+     * @param codec Códec con el que se guardó.
+     * @param data Datos guardados.
+     * @param size Tamaño original del fragmento.
+     * @return Los datos originales.
+     * @throws IOException
+     */
+    public static byte[] decompress(short codec, byte[] data, int size) throws IOException {
+        if (codec == CODEC_NONE) {
+            return data;
+        } else if (codec != CODEC_DEFLATE) {
+            throw new IOException("Códec de compresión desconocido: " + codec + ".");
+        }
+
+        byte[] output = new byte[size];
+        Inflater inflater = new Inflater();
+
+        try {
+            inflater.setInput(data);
+            int length = 0;
+
+            while (length < size && !inflater.finished()) {
+                int read = inflater.inflate(output, length, size - length);
+
+                if (read == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+
+                length += read;
+            }
+
+            if (length != size) {
+                throw new IOException("El fragmento comprimido está incompleto.");
+            }
+
+            return output;
+        } catch (DataFormatException ex) {
+            throw new IOException(ex);
+        } finally {
+            inflater.end();
+        }
+    }
+}
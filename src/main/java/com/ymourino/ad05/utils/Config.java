@@ -59,6 +59,24 @@ public class Config implements Serializable {
         // enunciado de la práctica se pide usar PostgreSQL.
         private String dialect = "org.hibernate.dialect.PostgreSQL10Dialect";
 
+        // Número máximo de conexiones del pool.
+        private int poolSize = 10;
+
+        // Número de sentencias que se agrupan en cada lote JDBC.
+        private int batchSize = 50;
+
+        // Número de elementos tras los que se vuelcan los cambios a la base
+        // de datos y se vacía la sesión durante las importaciones masivas.
+        private int flushInterval = 1000;
+
+        // Número de filas que el driver JDBC trae en cada viaje al recorrer
+        // los resultados de una consulta por partes.
+        private int fetchSize = 500;
+
+        // Número máximo de elementos en cada región de la caché de segundo
+        // nivel (0 para desactivarla).
+        private int cacheSize = 10000;
+
         public DbConnection() {
         }
 
@@ -101,6 +119,46 @@ public class Config implements Serializable {
         public void setDialect(String dialect) {
             this.dialect = dialect;
         }
+
+        public int getPoolSize() {
+            return poolSize;
+        }
+
+        public void setPoolSize(int poolSize) {
+            this.poolSize = poolSize;
+        }
+
+        public int getBatchSize() {
+            return batchSize;
+        }
+
+        public void setBatchSize(int batchSize) {
+            this.batchSize = batchSize;
+        }
+
+        public int getFlushInterval() {
+            return flushInterval;
+        }
+
+        public void setFlushInterval(int flushInterval) {
+            this.flushInterval = flushInterval;
+        }
+
+        public int getFetchSize() {
+            return fetchSize;
+        }
+
+        public void setFetchSize(int fetchSize) {
+            this.fetchSize = fetchSize;
+        }
+
+        public int getCacheSize() {
+            return cacheSize;
+        }
+
+        public void setCacheSize(int cacheSize) {
+            this.cacheSize = cacheSize;
+        }
     }
 
     public static class App implements Serializable {
@@ -109,6 +167,39 @@ public class Config implements Serializable {
 
         private String directory;
 
+        // Minutos entre escaneos completos del directorio. Los cambios se
+        // detectan mediante eventos del sistema de ficheros, por lo que el
+        // escaneo completo es solo una red de seguridad y puede ser poco
+        // frecuente.
+        private long fullScanInterval = 30;
+
+        // Número de ficheros que se restauran en paralelo al recibir
+        // notificaciones de la base de datos.
+        private int restoreThreads = 4;
+
+        // Códec con el que se comprimen los fragmentos al subirlos ("deflate"
+        // o "none") y nivel de compresión (1 es el más rápido, 9 el que más
+        // comprime).
+        private String compression = "deflate";
+        private int compressionLevel = 1;
+
+        // Los ficheros de hasta este tamaño (en bytes) se guardan enteros en
+        // una fila de file_contents en lugar de en fragmentos.
+        private int inlineThreshold = 16 * 1024;
+
+        // Forma de hacer la primera importación de un directorio: "copy"
+        // (COPY de PostgreSQL a una tabla temporal y volcado con unas pocas
+        // sentencias) o "batch" (inserciones de Hibernate por lotes). Y número
+        // de ficheros cuyo contenido se sube en paralelo durante la
+        // importación con COPY.
+        private String importMode = "copy";
+        private int importThreads = 4;
+
+        // Días que se conservan las entradas del registro de cambios (0 para
+        // no borrarlas nunca). Un cliente que lleve más tiempo sin conectarse
+        // vuelve a hacer la primera sincronización.
+        private int changeLogRetentionDays = 30;
+
         public String getDirectory() {
             return directory;
         }
@@ -116,5 +207,69 @@ public class Config implements Serializable {
         public void setDirectory(String directory) {
             this.directory = directory;
         }
+
+        public long getFullScanInterval() {
+            return fullScanInterval;
+        }
+
+        public void setFullScanInterval(long fullScanInterval) {
+            this.fullScanInterval = fullScanInterval;
+        }
+
+        public int getRestoreThreads() {
+            return restoreThreads;
+        }
+
+        public void setRestoreThreads(int restoreThreads) {
+            this.restoreThreads = restoreThreads;
+        }
+
+        public String getCompression() {
+            return compression;
+        }
+
+        public void setCompression(String compression) {
+            this.compression = compression;
+        }
+
+        public int getCompressionLevel() {
+            return compressionLevel;
+        }
+
+        public void setCompressionLevel(int compressionLevel) {
+            this.compressionLevel = compressionLevel;
+        }
+
+        public int getInlineThreshold() {
+            return inlineThreshold;
+        }
+
+        public void setInlineThreshold(int inlineThreshold) {
+            this.inlineThreshold = inlineThreshold;
+        }
+
+        public String getImportMode() {
+            return importMode;
+        }
+
+        public void setImportMode(String importMode) {
+            this.importMode = importMode;
+        }
+
+        public int getImportThreads() {
+            return importThreads;
+        }
+
+        public void setImportThreads(int importThreads) {
+            this.importThreads = importThreads;
+        }
+
+        public int getChangeLogRetentionDays() {
+            return changeLogRetentionDays;
+        }
+
+        public void setChangeLogRetentionDays(int changeLogRetentionDays) {
+            this.changeLogRetentionDays = changeLogRetentionDays;
+        }
     }
 }
@@ -0,0 +1,278 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2020 Yago Mouriño Mendaña
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.ymourino.ad05.utils;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Recorre un árbol de directorios en paralelo (un ForkJoinPool en el que cada
+ * directorio es una tarea) y entrega las entradas encontradas, junto con sus
+ * atributos, por lotes a un consumidor que se ejecuta en el hilo que llama a
+ * walk().
+ *
+ * Los lotes pasan por una cola acotada, de forma que la memoria utilizada
+ * depende del tamaño de los lotes y de la cola, y no del tamaño del árbol.
+ *
+ * @author Yago Mouriño Mendaña
+ */
+public class DirectoryWalker {
+
+    public static final int DEFAULT_BATCH_SIZE = 256;
+    public static final int DEFAULT_QUEUE_CAPACITY = 16;
+
+    private static final ForkJoinPool POOL
+            = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
+    // Marca de fin de recorrido.
+    private static final List<Entry> END = Collections.emptyList();
+
+    private final Path base;
+    private final int batchSize;
+    private final BlockingQueue<List<Entry>> queue;
+    private volatile boolean cancelled = false;
+
+    private DirectoryWalker(Path base, int batchSize, int queueCapacity) {
+        this.base = base;
+        this.batchSize = batchSize;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+    }
+
+    /**
+     * Recorre el árbol que empieza en start (incluido) con los valores por
+     * defecto de tamaño de lote y de cola.
+     *
+     * @param base Ruta respecto a la que se calculan las rutas relativas.
+     * @param start Ruta donde empieza el recorrido.
+     * @param consumer
+     * @throws Exception La primera excepción lanzada por el consumidor.
+     */
+    public static void walk(Path base, Path start, BatchConsumer consumer) throws Exception {
+        walk(base, start, DEFAULT_BATCH_SIZE, DEFAULT_QUEUE_CAPACITY, consumer);
+    }
+
+    /**
+     * Recorre el árbol que empieza en start (incluido).
+     *
+     * @param base Ruta respecto a la que se calculan las rutas relativas.
+     * @param start Ruta donde empieza el recorrido.
+     * @param batchSize Número máximo de entradas por lote.
+     * @param queueCapacity Número máximo de lotes pendientes de consumir.
+     * @param consumer
+     * @throws Exception La primera excepción lanzada por el consumidor.
+     */
+    public static void walk(Path base, Path start, int batchSize, int queueCapacity,
+            BatchConsumer consumer) throws Exception {
+        DirectoryWalker walker = new DirectoryWalker(base, batchSize, queueCapacity);
+        BasicFileAttributes attributes = Files.readAttributes(start, BasicFileAttributes.class);
+
+        POOL.execute(() -> {
+            try {
+                walker.new DirectoryTask(start, attributes).invoke();
+            } catch (RuntimeException ex) {
+                Logger.getLogger(DirectoryWalker.class.getName()).log(Level.SEVERE, null, ex);
+            } finally {
+                walker.put(END);
+            }
+        });
+
+        walker.consume(consumer);
+    }
+
+    /**
+     * Entrega los lotes al consumidor hasta que termina el recorrido. Si el
+     * consumidor lanza una excepción, se cancela el recorrido.
+     *
+     * @param consumer
+     * @throws Exception
+     */
+    private void consume(BatchConsumer consumer) throws Exception {
+        try {
+            List<Entry> batch;
+
+            while ((batch = queue.take()) != END) {
+                consumer.accept(batch);
+            }
+        } catch (Exception ex) {
+            // Las tareas dejan de esperar y de recorrer en cuanto ven la
+            // cancelación.
+            cancelled = true;
+            queue.clear();
+            throw ex;
+        }
+    }
+
+    /**
+     * Añade un lote a la cola, esperando si está llena. La espera se notifica
+     * al ForkJoinPool para que pueda compensar el hilo bloqueado.
+     *
+     * @param batch
+     */
+    private void put(List<Entry> batch) {
+        try {
+            ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker() {
+                private boolean done = false;
+
+                @Override
+                public boolean block() throws InterruptedException {
+                    while (!done && !cancelled) {
+                        done = queue.offer(batch, 100, TimeUnit.MILLISECONDS);
+                    }
+
+                    return true;
+                }
+
+                @Override
+                public boolean isReleasable() {
+                    return done || cancelled || (done = queue.offer(batch));
+                }
+            });
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            cancelled = true;
+        }
+    }
+
+    /**
+     * Tarea que procesa un directorio: emite sus entradas y crea una subtarea
+     * por cada subdirectorio.
+     */
+    private class DirectoryTask extends RecursiveAction {
+
+        private static final long serialVersionUID = -6018745276404913519L;
+
+        private final Path directory;
+        private final transient BasicFileAttributes attributes;
+
+        DirectoryTask(Path directory, BasicFileAttributes attributes) {
+            this.directory = directory;
+            this.attributes = attributes;
+        }
+
+        @Override
+        protected void compute() {
+            if (cancelled) {
+                return;
+            }
+
+            List<Entry> batch = new ArrayList<>(batchSize);
+            List<DirectoryTask> subtasks = new ArrayList<>();
+            batch.add(new Entry(directory, base.relativize(directory).toString(), attributes));
+
+            try (DirectoryStream<Path> children = Files.newDirectoryStream(directory)) {
+                for (Path child : children) {
+                    if (cancelled) {
+                        return;
+                    }
+
+                    BasicFileAttributes childAttributes;
+
+                    try {
+                        childAttributes = Files.readAttributes(child, BasicFileAttributes.class);
+                    } catch (IOException ex) {
+                        Logger.getLogger(DirectoryWalker.class.getName()).log(Level.WARNING, null, ex);
+                        continue;
+                    }
+
+                    // No se entra en los enlaces simbólicos a directorios para
+                    // evitar ciclos.
+                    if (childAttributes.isDirectory() && !Files.isSymbolicLink(child)) {
+                        subtasks.add(new DirectoryTask(child, childAttributes));
+                    } else {
+                        batch.add(new Entry(child, base.relativize(child).toString(), childAttributes));
+
+                        if (batch.size() >= batchSize) {
+                            put(batch);
+                            batch = new ArrayList<>(batchSize);
+                        }
+                    }
+                }
+            } catch (IOException ex) {
+                Logger.getLogger(DirectoryWalker.class.getName()).log(Level.WARNING, null, ex);
+            }
+
+            if (!batch.isEmpty()) {
+                put(batch);
+            }
+
+            invokeAll(subtasks);
+        }
+    }
+
+    /**
+     * Entrada encontrada durante el recorrido.
+     */
+    public static class Entry {
+
+        private final Path path;
+        private final String relativePath;
+        private final BasicFileAttributes attributes;
+
+        public Entry(Path path, String relativePath, BasicFileAttributes attributes) {
+            this.path = path;
+            this.relativePath = relativePath;
+            this.attributes = attributes;
+        }
+
+        public Path getPath() {
+            return path;
+        }
+
+        /**
+         * Ruta relativa a la ruta base del recorrido (cadena vacía para la
+         * propia ruta base).
+         *
+         * @return
+         */
+        public String getRelativePath() {
+            return relativePath;
+        }
+
+        public BasicFileAttributes getAttributes() {
+            return attributes;
+        }
+    }
+
+    /**
+     * Consumidor de los lotes de entradas.
+     */
+    @FunctionalInterface
+    public interface BatchConsumer {
+
+        void accept(List<Entry> batch) throws Exception;
+    }
+}
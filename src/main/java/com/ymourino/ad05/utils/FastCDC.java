@@ -0,0 +1,159 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2020 Yago Mouriño Mendaña
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.ymourino.ad05.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Divide un flujo de datos en fragmentos de tamaño variable usando el
+ * algoritmo FastCDC (content-defined chunking). Los puntos de corte dependen
+ * únicamente del contenido, por lo que una inserción o un borrado en un
+ * fichero solo altera los fragmentos cercanos al cambio.
+ *
+ * @author Yago Mouriño Mendaña
+ */
+public class FastCDC {
+
+    public static final int MIN_SIZE = 16 * 1024;
+    public static final int AVG_SIZE = 64 * 1024;
+    public static final int MAX_SIZE = 256 * 1024;
+
+    // Se usan los bits altos de la huella, que dependen de los últimos 64
+    // bytes leídos. Antes del tamaño medio se exige una máscara más estricta y
+    // después una más laxa (chunking normalizado), lo que concentra los
+    // tamaños alrededor de la media.
+    private static final long MASK_SMALL = 0xFFFFC00000000000L; // 18 bits
+    private static final long MASK_LARGE = 0xFFFC000000000000L; // 14 bits
+
+    // La tabla debe ser idéntica en todos los clientes para que los mismos
+    // contenidos generen los mismos fragmentos, por eso se usa una semilla
+    // fija (el algoritmo de java.util.Random está especificado).
+    private static final long[] GEAR = new long[256];
+
+    static {
+        Random random = new Random(0x6d696e6964726976L);
+
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    private final InputStream is;
+    private final byte[] buffer = new byte[MAX_SIZE * 2];
+    private int start = 0;
+    private int end = 0;
+    private boolean eof = false;
+
+    public FastCDC(InputStream is) {
+        this.is = is;
+    }
+
+    /**
+     * Devuelve el siguiente fragmento del flujo.
+     *
+     * @return El fragmento, o null si no quedan más datos.
+     * @throws IOException
+     */
+    public byte[] nextChunk() throws IOException {
+        fill();
+
+        if (start == end) {
+            return null;
+        }
+
+        int length = cutPoint(buffer, start, end - start);
+        byte[] chunk = Arrays.copyOfRange(buffer, start, start + length);
+        start += length;
+        return chunk;
+    }
+
+    /**
+     * Rellena el buffer hasta tener al menos MAX_SIZE bytes disponibles (o
+     * hasta el final del flujo).
+     *
+     * @throws IOException
+     */
+    private void fill() throws IOException {
+        if (end - start >= MAX_SIZE || eof) {
+            return;
+        }
+
+        if (start > 0) {
+            System.arraycopy(buffer, start, buffer, 0, end - start);
+            end -= start;
+            start = 0;
+        }
+
+        while (end < buffer.length && end - start < MAX_SIZE) {
+            int read = is.read(buffer, end, buffer.length - end);
+
+            if (read == -1) {
+                eof = true;
+                break;
+            }
+
+            end += read;
+        }
+    }
+
+    /**
+     * Calcula la longitud del fragmento que empieza en la posición indicada.
+     *
+     * @param data
+     * @param offset
+     * @param available
+     * @return
+     */
+    private static int cutPoint(byte[] data, int offset, int available) {
+        if (available <= MIN_SIZE) {
+            return available;
+        }
+
+        int limit = Math.min(available, MAX_SIZE);
+        int normal = Math.min(limit, AVG_SIZE);
+        long fingerprint = 0;
+        int i = MIN_SIZE;
+
+        for (; i < normal; i++) {
+            fingerprint = (fingerprint << 1) + GEAR[data[offset + i] & 0xFF];
+
+            if ((fingerprint & MASK_SMALL) == 0) {
+                return i + 1;
+            }
+        }
+
+        for (; i < limit; i++) {
+            fingerprint = (fingerprint << 1) + GEAR[data[offset + i] & 0xFF];
+
+            if ((fingerprint & MASK_LARGE) == 0) {
+                return i + 1;
+            }
+        }
+
+        return limit;
+    }
+}
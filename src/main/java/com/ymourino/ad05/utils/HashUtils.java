@@ -0,0 +1,130 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2020 Yago Mouriño Mendaña
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.ymourino.ad05.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Clase con métodos estáticos para calcular el resumen (hash) del contenido de
+ * los ficheros.
+ *
+ * @author Yago Mouriño Mendaña
+ */
+public class HashUtils {
+
+    public static final String ALGORITHM = "SHA-256";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private HashUtils() {
+    }
+
+    /**
+     * Calcula el resumen del contenido de un fichero.
+     *
+     * @param path Ruta del fichero.
+     * @return El resumen en hexadecimal.
+     * @throws IOException
+     */
+    public static String digest(Path path) throws IOException {
+        try (InputStream is = Files.newInputStream(path)) {
+            return digest(is);
+        }
+    }
+
+    /**
+     * Calcula el resumen de todo el contenido de un flujo de entrada. El flujo
+     * no se cierra.
+     *
+     * @param is Flujo de entrada.
+     * @return El resumen en hexadecimal.
+     * @throws IOException
+     */
+    public static String digest(InputStream is) throws IOException {
+        MessageDigest md = newMessageDigest();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int read;
+
+        while ((read = is.read(buffer)) != -1) {
+            md.update(buffer, 0, read);
+        }
+
+        return toHex(md.digest());
+    }
+
+    /**
+     * Crea una nueva instancia del algoritmo de resumen utilizado.
+     *
+     * @return
+     */
+    public static MessageDigest newMessageDigest() {
+        try {
+            return MessageDigest.getInstance(ALGORITHM);
+        } catch (NoSuchAlgorithmException ex) {
+            // Todas las implementaciones de Java deben incluir SHA-256.
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Convierte un array de bytes en su representación hexadecimal.
+     *
+     * @param bytes
+     * @return
+     */
+    public static String toHex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = HEX[(bytes[i] >> 4) & 0xF];
+            chars[i * 2 + 1] = HEX[bytes[i] & 0xF];
+        }
+
+        return new String(chars);
+    }
+
+    /**
+     * Convierte una representación hexadecimal en el array de bytes
+     * correspondiente.
+     *
+     * @param hex
+     * @return
+     */
+    public static byte[] fromHex(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) ((Character.digit(hex.charAt(i * 2), 16) << 4)
+                    | Character.digit(hex.charAt(i * 2 + 1), 16));
+        }
+
+        return bytes;
+    }
+}
@@ -0,0 +1,341 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2020 Yago Mouriño Mendaña
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.ymourino.ad05.utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Manifiesto local: para cada elemento del directorio sincronizado guarda la
+ * ruta relativa, el tamaño, la fecha de modificación, el resumen y el
+ * identificador en la base de datos tal y como estaban tras la última
+ * sincronización. Comparándolo con el disco se sabe qué ha cambiado sin
+ * consultar la base de datos.
+ *
+ * Los elementos se guardan en una TreeSnapshot (arrays de tipos primitivos),
+ * que se lee y se escribe tal cual en un fichero mapeado en memoria:
+ * <pre>
+ * int magic, int versión, TreeSnapshot
+ * </pre>
+ * Los cambios posteriores a la carga se guardan aparte y se incorporan a una
+ * nueva copia al escribir el manifiesto.
+ *
+ * @author Yago Mouriño Mendaña
+ */
+public class Manifest {
+
+    private static final int MAGIC = 0x4D444D46;
+    private static final int VERSION = 2;
+
+    private TreeSnapshot snapshot = TreeSnapshot.empty();
+
+    // Entradas añadidas o modificadas desde la última copia (null si se han
+    // eliminado) y subárboles eliminados.
+    private final Map<String, Entry> changes = new HashMap<>();
+    private final Set<String> removedTrees = new HashSet<>();
+
+    /**
+     * Lee un manifiesto de disco. Si el fichero no existe o no es válido
+     * (por ejemplo, de una versión anterior), se devuelve un manifiesto vacío
+     * y la siguiente sincronización lo reconstruye entero.
+     *
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    public static Manifest read(Path file) throws IOException {
+        Manifest manifest = new Manifest();
+
+        if (!Files.exists(file)) {
+            return manifest;
+        }
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+            if (buffer.remaining() < 8
+                    || buffer.getInt() != MAGIC
+                    || buffer.getInt() != VERSION) {
+                return manifest;
+            }
+
+            manifest.snapshot = TreeSnapshot.read(buffer);
+        } catch (RuntimeException ex) {
+            // Fichero truncado o corrupto.
+            manifest.snapshot = TreeSnapshot.empty();
+        }
+
+        return manifest;
+    }
+
+    /**
+     * Escribe el manifiesto en el fichero indicado.
+     *
+     * @param file
+     * @throws IOException
+     */
+    public synchronized void write(Path file) throws IOException {
+        compact();
+
+        try (FileChannel channel = FileChannel.open(file,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer header = ByteBuffer.allocate(8).putInt(MAGIC).putInt(VERSION);
+            header.flip();
+
+            while (header.hasRemaining()) {
+                channel.write(header);
+            }
+
+            snapshot.write(channel);
+            channel.force(true);
+        }
+    }
+
+    /**
+     * Incorpora los cambios pendientes a una nueva copia.
+     */
+    private void compact() {
+        if (!changes.isEmpty() || !removedTrees.isEmpty()) {
+            snapshot = TreeSnapshot.build(getEntries());
+            changes.clear();
+            removedTrees.clear();
+        }
+    }
+
+    public synchronized Entry get(String path) {
+        if (changes.containsKey(path)) {
+            return changes.get(path);
+        }
+
+        if (isRemoved(path)) {
+            return null;
+        }
+
+        int index = snapshot.find(path);
+        return index != TreeSnapshot.NOT_FOUND ? snapshot.getEntry(index) : null;
+    }
+
+    public synchronized void put(Entry entry) {
+        changes.put(entry.getPath(), entry);
+    }
+
+    public synchronized void remove(String path) {
+        changes.put(path, null);
+    }
+
+    /**
+     * Elimina una entrada y, si es un directorio, todas las que contiene.
+     *
+     * @param path
+     */
+    public synchronized void removeTree(String path) {
+        String prefix = path + java.io.File.separator;
+        changes.keySet().removeIf((key) -> key.equals(path) || key.startsWith(prefix));
+        removedTrees.add(path);
+    }
+
+    public synchronized void clear() {
+        snapshot = TreeSnapshot.empty();
+        changes.clear();
+        removedTrees.clear();
+    }
+
+    /**
+     * Obtiene una copia de todas las entradas.
+     *
+     * @return
+     */
+    public synchronized List<Entry> getEntries() {
+        List<Entry> entries = new ArrayList<>();
+
+        snapshot.forEach((entry) -> {
+            if (!changes.containsKey(entry.getPath()) && !isRemoved(entry.getPath())) {
+                entries.add(entry);
+            }
+        });
+
+        for (Entry entry : changes.values()) {
+            if (entry != null) {
+                entries.add(entry);
+            }
+        }
+
+        return entries;
+    }
+
+    /**
+     * Empieza un seguimiento de los elementos que se encuentran en disco, para
+     * saber al terminar cuáles han desaparecido. Solo se necesita un bit por
+     * elemento.
+     *
+     * @return
+     */
+    public synchronized Tracker track() {
+        compact();
+        return new Tracker(snapshot);
+    }
+
+    /**
+     * Indica si una ruta está dentro de algún subárbol eliminado.
+     *
+     * @param path
+     * @return
+     */
+    private boolean isRemoved(String path) {
+        if (removedTrees.isEmpty()) {
+            return false;
+        }
+
+        for (String current = path; ; ) {
+            if (removedTrees.contains(current)) {
+                return true;
+            }
+
+            int separator = current.lastIndexOf(java.io.File.separatorChar);
+
+            if (separator < 0) {
+                return false;
+            }
+
+            current = current.substring(0, separator);
+        }
+    }
+
+    /**
+     * Seguimiento de los elementos del manifiesto encontrados en disco.
+     */
+    public static class Tracker {
+
+        private final TreeSnapshot snapshot;
+        private final BitSet seen;
+
+        private Tracker(TreeSnapshot snapshot) {
+            this.snapshot = snapshot;
+            this.seen = new BitSet(snapshot.size());
+        }
+
+        /**
+         * Marca como encontrado el elemento con la ruta indicada.
+         *
+         * @param path
+         */
+        public void markSeen(String path) {
+            int index = snapshot.find(path);
+
+            if (index != TreeSnapshot.NOT_FOUND) {
+                seen.set(index);
+            }
+        }
+
+        /**
+         * Obtiene los elementos que no se han encontrado.
+         *
+         * @return
+         */
+        public List<Entry> getMissing() {
+            List<Entry> missing = new ArrayList<>();
+
+            for (int i = seen.nextClearBit(1); i < snapshot.size(); i = seen.nextClearBit(i + 1)) {
+                Entry entry = snapshot.getEntry(i);
+
+                if (entry != null) {
+                    missing.add(entry);
+                }
+            }
+
+            return missing;
+        }
+    }
+
+    /**
+     * Entrada del manifiesto.
+     */
+    public static class Entry {
+
+        private final String path;
+        private final boolean directory;
+        private final long size;
+        private final long lastModified;
+        private final String digest;
+        private final long id;
+
+        public Entry(String path, boolean directory, long size, long lastModified,
+                String digest, long id) {
+            this.path = path;
+            this.directory = directory;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.digest = digest;
+            this.id = id;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public boolean isDirectory() {
+            return directory;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        public String getDigest() {
+            return digest;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        /**
+         * Indica si un fichero del disco coincide con esta entrada según su
+         * tamaño y su fecha de modificación.
+         *
+         * @param size
+         * @param lastModified
+         * @return
+         */
+        public boolean matches(long size, long lastModified) {
+            return !directory && this.size == size && this.lastModified == lastModified;
+        }
+    }
+}
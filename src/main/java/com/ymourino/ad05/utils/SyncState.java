@@ -0,0 +1,220 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2020 Yago Mouriño Mendaña
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.ymourino.ad05.utils;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Estado local de la sincronización, guardado en un directorio oculto dentro
+ * del directorio sincronizado. Este directorio nunca se sube a la base de
+ * datos.
+ *
+ * Guarda el cursor del registro de cambios (la transacción y el número del
+ * último cambio de la base de datos que se ha aplicado en local) y el
+ * manifiesto con el estado de cada elemento tras la última sincronización.
+ *
+ * @author Yago Mouriño Mendaña
+ */
+public class SyncState {
+
+    public static final String STATE_DIRECTORY = ".minidrive";
+
+    private static final String CURSOR_FILE = "cursor";
+    private static final String MANIFEST_FILE = "manifest";
+
+    private final Path stateDirectory;
+    private final Manifest manifest;
+    private Cursor cursor;
+
+    public SyncState(String rootPath) throws IOException {
+        this.stateDirectory = Paths.get(rootPath).toAbsolutePath().normalize()
+                .resolve(STATE_DIRECTORY);
+
+        Path cursorFile = stateDirectory.resolve(CURSOR_FILE);
+        this.cursor = Files.exists(cursorFile)
+                ? Cursor.parse(new String(Files.readAllBytes(cursorFile),
+                        StandardCharsets.UTF_8))
+                : null;
+
+        this.manifest = Manifest.read(stateDirectory.resolve(MANIFEST_FILE));
+    }
+
+    /**
+     * Indica si una ruta relativa al directorio sincronizado pertenece al
+     * directorio de estado.
+     *
+     * @param relativePath
+     * @return
+     */
+    public static boolean isStatePath(String relativePath) {
+        return relativePath.equals(STATE_DIRECTORY)
+                || relativePath.startsWith(STATE_DIRECTORY + java.io.File.separator);
+    }
+
+    public Path getStateDirectory() {
+        return stateDirectory;
+    }
+
+    /**
+     * Indica si ya se ha guardado algún cursor (es decir, si el directorio
+     * local ya se ha sincronizado alguna vez).
+     *
+     * @return
+     */
+    public synchronized boolean hasCursor() {
+        return cursor != null;
+    }
+
+    public synchronized Cursor getCursor() {
+        return cursor;
+    }
+
+    /**
+     * Guarda el cursor de forma atómica.
+     *
+     * @param cursor
+     * @throws IOException
+     */
+    public synchronized void setCursor(Cursor cursor) throws IOException {
+        byte[] content = cursor.toString().getBytes(StandardCharsets.UTF_8);
+        writeAtomically(CURSOR_FILE, (file) -> Files.write(file, content));
+        this.cursor = cursor;
+    }
+
+    /**
+     * Olvida el cursor guardado, de forma que la siguiente sincronización
+     * vuelve a ser completa.
+     *
+     * @throws IOException
+     */
+    public synchronized void clearCursor() throws IOException {
+        Files.deleteIfExists(stateDirectory.resolve(CURSOR_FILE));
+        this.cursor = null;
+    }
+
+    public Manifest getManifest() {
+        return manifest;
+    }
+
+    /**
+     * Guarda el manifiesto de forma atómica.
+     *
+     * @throws IOException
+     */
+    public synchronized void saveManifest() throws IOException {
+        writeAtomically(MANIFEST_FILE, manifest::write);
+    }
+
+    /**
+     * Escribe un fichero del directorio de estado a través de un temporal que
+     * se renombra de forma atómica.
+     *
+     * @param name
+     * @param writer Escribe el contenido en el fichero temporal.
+     * @throws IOException
+     */
+    private void writeAtomically(String name, ContentWriter writer) throws IOException {
+        Files.createDirectories(stateDirectory);
+        Path temporary = Files.createTempFile(stateDirectory, name, ".tmp");
+
+        try {
+            writer.write(temporary);
+            Files.move(temporary, stateDirectory.resolve(name),
+                    StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    /**
+     * Posición en el registro de cambios: transacción y número de secuencia
+     * del último cambio aplicado. Los cambios se ordenan primero por
+     * transacción y después por número de secuencia.
+     */
+    public static class Cursor {
+
+        private final long txid;
+        private final long seq;
+
+        public Cursor(long txid, long seq) {
+            this.txid = txid;
+            this.seq = seq;
+        }
+
+        /**
+         * Lee un cursor guardado. Los cursores de versiones anteriores solo
+         * tienen el número de secuencia; corresponden a los cambios
+         * registrados sin transacción (0).
+         *
+         * @param text
+         * @return
+         */
+        public static Cursor parse(String text) {
+            String[] parts = text.trim().split("\\s+");
+
+            return parts.length == 1
+                    ? new Cursor(0, Long.parseLong(parts[0]))
+                    : new Cursor(Long.parseLong(parts[0]), Long.parseLong(parts[1]));
+        }
+
+        public long getTxid() {
+            return txid;
+        }
+
+        public long getSeq() {
+            return seq;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Cursor)) {
+                return false;
+            }
+
+            Cursor other = (Cursor) obj;
+            return txid == other.txid && seq == other.seq;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(txid) * 31 + Long.hashCode(seq);
+        }
+
+        @Override
+        public String toString() {
+            return txid + " " + seq;
+        }
+    }
+
+    @FunctionalInterface
+    private interface ContentWriter {
+
+        void write(Path file) throws IOException;
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2020 Yago Mouriño Mendaña
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.ymourino.ad05.utils;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Calcula el resumen agregado (hash de Merkle) de un directorio a partir del
+ * nombre, el tamaño y el resumen de sus ficheros y del nombre y el resumen
+ * agregado de sus subdirectorios. La fecha de modificación no se incluye.
+ *
+ * El mismo cálculo se hace en la base de datos (Directory) y en disco, de
+ * forma que dos árboles con el mismo resumen en la raíz tienen el mismo
+ * contenido y no hace falta recorrerlos.
+ *
+ * @author Yago Mouriño Mendaña
+ */
+public class TreeHash {
+
+    private static final byte TYPE_FILE = 'F';
+    private static final byte TYPE_DIRECTORY = 'D';
+
+    private final List<Child> children = new ArrayList<>();
+
+    /**
+     * Añade un fichero. Los ficheros sin resumen (guardados antes de que se
+     * calculasen) cuentan con un resumen vacío.
+     *
+     * @param name
+     * @param size
+     * @param digest
+     * @return
+     */
+    public TreeHash addFile(String name, long size, String digest) {
+        children.add(new Child(TYPE_FILE, name,
+                size + ":" + (digest != null ? digest : "")));
+        return this;
+    }
+
+    /**
+     * Añade un subdirectorio con su resumen agregado.
+     *
+     * @param name
+     * @param treeHash
+     * @return
+     */
+    public TreeHash addDirectory(String name, String treeHash) {
+        children.add(new Child(TYPE_DIRECTORY, name,
+                treeHash != null ? treeHash : ""));
+        return this;
+    }
+
+    /**
+     * Calcula el resumen agregado. Los hijos se ordenan por nombre para que
+     * el resultado no dependa del orden en que se han añadido.
+     *
+     * @return El resumen en hexadecimal.
+     */
+    public String build() {
+        children.sort(Comparator.comparing((Child child) -> child.name)
+                .thenComparing((child) -> child.type));
+
+        MessageDigest md = HashUtils.newMessageDigest();
+
+        for (Child child : children) {
+            md.update(child.type);
+            md.update(child.name.getBytes(StandardCharsets.UTF_8));
+            md.update((byte) 0);
+            md.update(child.value.getBytes(StandardCharsets.UTF_8));
+            md.update((byte) '\n');
+        }
+
+        return HashUtils.toHex(md.digest());
+    }
+
+    private static class Child {
+
+        private final byte type;
+        private final String name;
+        private final String value;
+
+        Child(byte type, String name, String value) {
+            this.type = type;
+            this.name = name;
+            this.value = value;
+        }
+    }
+}
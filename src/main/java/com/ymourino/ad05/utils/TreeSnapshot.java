@@ -0,0 +1,406 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2020 Yago Mouriño Mendaña
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.ymourino.ad05.utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+
+/**
+ * Copia de solo lectura de un árbol de ficheros y directorios guardada en
+ * arrays paralelos de tipos primitivos, con los nombres deduplicados. Ocupa
+ * unos 70 bytes por elemento (32 de ellos del resumen) más los nombres
+ * distintos, frente a los cientos de bytes de un objeto por elemento con su
+ * ruta completa.
+ *
+ * Los elementos se guardan en anchura: el 0 es la raíz y los hijos de cada
+ * elemento son consecutivos y están ordenados por nombre, de forma que para
+ * localizar una ruta basta una búsqueda binaria por nivel.
+ *
+ * @author Yago Mouriño Mendaña
+ */
+public class TreeSnapshot {
+
+    public static final int NOT_FOUND = -1;
+
+    private static final int DIGEST_LENGTH = 32;
+
+    private static final byte FLAG_DIRECTORY = 1;
+    private static final byte FLAG_DIGEST = 2;
+    // Directorio que solo existe como antecesor de otros elementos.
+    private static final byte FLAG_IMPLICIT = 4;
+
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+    private final int count;
+    private final String[] names;
+    private final int[] parent;
+    private final int[] firstChild;
+    private final int[] name;
+    private final long[] size;
+    private final long[] lastModified;
+    private final long[] id;
+    private final byte[] flags;
+    private final byte[] digests;
+
+    private TreeSnapshot(int count, String[] names) {
+        this.count = count;
+        this.names = names;
+        this.parent = new int[count];
+        this.firstChild = new int[count + 1];
+        this.name = new int[count];
+        this.size = new long[count];
+        this.lastModified = new long[count];
+        this.id = new long[count];
+        this.flags = new byte[count];
+        this.digests = new byte[count * DIGEST_LENGTH];
+    }
+
+    /**
+     * Crea una copia vacía (solo con la raíz).
+     *
+     * @return
+     */
+    public static TreeSnapshot empty() {
+        return build(new ArrayList<>());
+    }
+
+    /**
+     * Crea una copia a partir de las entradas indicadas. Los directorios
+     * intermedios que no tengan entrada se crean como implícitos.
+     *
+     * @param entries
+     * @return
+     */
+    public static TreeSnapshot build(Collection<Manifest.Entry> entries) {
+        BuildNode root = new BuildNode("");
+        int nodes = 1;
+
+        for (Manifest.Entry entry : entries) {
+            BuildNode node = root;
+
+            for (String segment : split(entry.getPath())) {
+                BuildNode child = node.children.get(segment);
+
+                if (child == null) {
+                    child = new BuildNode(segment);
+                    node.children.put(segment, child);
+                    nodes++;
+                }
+
+                node = child;
+            }
+
+            node.entry = entry;
+        }
+
+        // Se numeran en anchura, con los hijos ordenados por nombre.
+        List<BuildNode> order = new ArrayList<>(nodes);
+        List<Integer> parents = new ArrayList<>(nodes);
+        int[] firstChildren = new int[nodes + 1];
+        order.add(root);
+        parents.add(NOT_FOUND);
+
+        for (int i = 0; i < order.size(); i++) {
+            firstChildren[i] = order.size();
+
+            for (BuildNode child : order.get(i).children.values()) {
+                order.add(child);
+                parents.add(i);
+            }
+        }
+
+        firstChildren[nodes] = nodes;
+
+        Map<String, Integer> nameIndex = new HashMap<>();
+        List<String> uniqueNames = new ArrayList<>();
+
+        for (BuildNode node : order) {
+            if (!nameIndex.containsKey(node.name)) {
+                nameIndex.put(node.name, uniqueNames.size());
+                uniqueNames.add(node.name);
+            }
+        }
+
+        TreeSnapshot snapshot = new TreeSnapshot(nodes, uniqueNames.toArray(new String[0]));
+        System.arraycopy(firstChildren, 0, snapshot.firstChild, 0, nodes + 1);
+
+        for (int i = 0; i < nodes; i++) {
+            BuildNode node = order.get(i);
+            Manifest.Entry entry = node.entry;
+
+            snapshot.parent[i] = parents.get(i);
+            snapshot.name[i] = nameIndex.get(node.name);
+
+            if (entry == null) {
+                snapshot.flags[i] = FLAG_DIRECTORY | FLAG_IMPLICIT;
+                continue;
+            }
+
+            byte nodeFlags = entry.isDirectory() ? FLAG_DIRECTORY : 0;
+
+            if (entry.getDigest() != null) {
+                nodeFlags |= FLAG_DIGEST;
+                System.arraycopy(HashUtils.fromHex(entry.getDigest()), 0,
+                        snapshot.digests, i * DIGEST_LENGTH, DIGEST_LENGTH);
+            }
+
+            snapshot.flags[i] = nodeFlags;
+            snapshot.size[i] = entry.getSize();
+            snapshot.lastModified[i] = entry.getLastModified();
+            snapshot.id[i] = entry.getId();
+        }
+
+        return snapshot;
+    }
+
+    /**
+     * @return El número de elementos, incluida la raíz.
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Busca un elemento por su ruta relativa.
+     *
+     * @param path
+     * @return El índice del elemento, o NOT_FOUND si no existe.
+     */
+    public int find(String path) {
+        int node = 0;
+
+        for (String segment : split(path)) {
+            int low = firstChild[node];
+            int high = firstChild[node + 1] - 1;
+            node = NOT_FOUND;
+
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                int comparison = names[name[middle]].compareTo(segment);
+
+                if (comparison < 0) {
+                    low = middle + 1;
+                } else if (comparison > 0) {
+                    high = middle - 1;
+                } else {
+                    node = middle;
+                    break;
+                }
+            }
+
+            if (node == NOT_FOUND) {
+                return NOT_FOUND;
+            }
+        }
+
+        return node;
+    }
+
+    /**
+     * Obtiene la entrada de un elemento.
+     *
+     * @param index
+     * @return La entrada, o null si el elemento es implícito.
+     */
+    public Manifest.Entry getEntry(int index) {
+        if ((flags[index] & FLAG_IMPLICIT) != 0) {
+            return null;
+        }
+
+        String digest = (flags[index] & FLAG_DIGEST) != 0
+                ? HashUtils.toHex(Arrays.copyOfRange(digests,
+                        index * DIGEST_LENGTH, (index + 1) * DIGEST_LENGTH))
+                : null;
+
+        return new Manifest.Entry(getPath(index), (flags[index] & FLAG_DIRECTORY) != 0,
+                size[index], lastModified[index], digest, id[index]);
+    }
+
+    /**
+     * Reconstruye la ruta relativa de un elemento a partir de sus antecesores.
+     *
+     * @param index
+     * @return
+     */
+    public String getPath(int index) {
+        if (index == 0) {
+            return "";
+        }
+
+        StringBuilder path = new StringBuilder(names[name[index]]);
+
+        for (int node = parent[index]; node > 0; node = parent[node]) {
+            path.insert(0, java.io.File.separatorChar).insert(0, names[name[node]]);
+        }
+
+        return path.toString();
+    }
+
+    /**
+     * Recorre todas las entradas (sin los elementos implícitos).
+     *
+     * @param consumer
+     */
+    public void forEach(Consumer<Manifest.Entry> consumer) {
+        for (int i = 1; i < count; i++) {
+            Manifest.Entry entry = getEntry(i);
+
+            if (entry != null) {
+                consumer.accept(entry);
+            }
+        }
+    }
+
+    /**
+     * Escribe la copia en el canal indicado.
+     *
+     * @param channel
+     * @throws IOException
+     */
+    public void write(WritableByteChannel channel) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(WRITE_BUFFER_SIZE);
+        buffer.putInt(count).putInt(names.length);
+
+        for (String nodeName : names) {
+            byte[] bytes = nodeName.getBytes(StandardCharsets.UTF_8);
+            ensureRemaining(channel, buffer, 4);
+            buffer.putInt(bytes.length);
+            writeBytes(channel, buffer, bytes);
+        }
+
+        for (int[] array : new int[][]{parent, firstChild, name}) {
+            for (int value : array) {
+                ensureRemaining(channel, buffer, 4);
+                buffer.putInt(value);
+            }
+        }
+
+        for (long[] array : new long[][]{size, lastModified, id}) {
+            for (long value : array) {
+                ensureRemaining(channel, buffer, 8);
+                buffer.putLong(value);
+            }
+        }
+
+        writeBytes(channel, buffer, flags);
+        writeBytes(channel, buffer, digests);
+        drain(channel, buffer);
+    }
+
+    /**
+     * Lee una copia escrita con write(). Los arrays se copian por bloques
+     * desde el buffer (normalmente un fichero mapeado en memoria).
+     *
+     * @param buffer
+     * @return
+     */
+    public static TreeSnapshot read(ByteBuffer buffer) {
+        int count = buffer.getInt();
+        String[] names = new String[buffer.getInt()];
+
+        for (int i = 0; i < names.length; i++) {
+            byte[] bytes = new byte[buffer.getInt()];
+            buffer.get(bytes);
+            names[i] = new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        TreeSnapshot snapshot = new TreeSnapshot(count, names);
+
+        for (int[] array : new int[][]{snapshot.parent, snapshot.firstChild, snapshot.name}) {
+            buffer.asIntBuffer().get(array);
+            buffer.position(buffer.position() + array.length * 4);
+        }
+
+        for (long[] array : new long[][]{snapshot.size, snapshot.lastModified, snapshot.id}) {
+            buffer.asLongBuffer().get(array);
+            buffer.position(buffer.position() + array.length * 8);
+        }
+
+        buffer.get(snapshot.flags);
+        buffer.get(snapshot.digests);
+        return snapshot;
+    }
+
+    private static void writeBytes(WritableByteChannel channel, ByteBuffer buffer,
+            byte[] bytes) throws IOException {
+        int offset = 0;
+
+        while (offset < bytes.length) {
+            if (!buffer.hasRemaining()) {
+                drain(channel, buffer);
+            }
+
+            int length = Math.min(buffer.remaining(), bytes.length - offset);
+            buffer.put(bytes, offset, length);
+            offset += length;
+        }
+    }
+
+    private static void ensureRemaining(WritableByteChannel channel, ByteBuffer buffer,
+            int length) throws IOException {
+        if (buffer.remaining() < length) {
+            drain(channel, buffer);
+        }
+    }
+
+    private static void drain(WritableByteChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+
+        buffer.clear();
+    }
+
+    private static String[] split(String path) {
+        return path.isEmpty()
+                ? new String[0]
+                : path.split(java.util.regex.Pattern.quote(java.io.File.separator));
+    }
+
+    /**
+     * Nodo temporal utilizado solo durante la construcción.
+     */
+    private static class BuildNode {
+
+        private final String name;
+        private final Map<String, BuildNode> children = new TreeMap<>();
+        private Manifest.Entry entry;
+
+        BuildNode(String name) {
+            this.name = name;
+        }
+    }
+}
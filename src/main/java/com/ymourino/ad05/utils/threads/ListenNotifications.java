@@ -23,78 +23,134 @@
  */
 package com.ymourino.ad05.utils.threads;
 
-import com.ymourino.ad05.persistence.DBHelper;
+import com.ymourino.ad05.persistence.ChangeLog;
 import com.ymourino.ad05.persistence.HibernateUtil;
 import com.ymourino.ad05.persistence.IJPAUtil;
-import com.ymourino.ad05.persistence.models.File;
-import com.ymourino.ad05.utils.Config;
 import com.ymourino.ad05.utils.ConfigBuilder;
-import java.nio.file.Paths;
+import com.ymourino.ad05.utils.SyncState;
 import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.Statement;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import org.hibernate.Session;
 import org.postgresql.PGConnection;
 import org.postgresql.PGNotification;
 
 /**
+ * Hilo que mantiene el directorio local al día con los cambios de la base de
+ * datos.
+ *
+ * Los cambios se leen del registro de cambios (tabla change_log) a partir del
+ * cursor guardado en local, por lo que no se pierde nada aunque el cliente
+ * haya estado desconectado. Las notificaciones solo sirven para despertar al
+ * hilo: este hilo se bloquea esperándolas y avisa a un segundo hilo, que lee
+ * los cambios por lotes y restaura los ficheros en paralelo en un pool de
+ * tamaño limitado.
+ *
+ * Los cambios confirmados mientras sigue en curso una transacción anterior no
+ * se aplican hasta que esta termina, y su final no siempre genera una
+ * notificación; mientras haya cambios así retenidos, se vuelve a comprobar el
+ * registro cada vez que vence la espera.
  *
  * @author Yago Mouriño Mendaña
  */
 public class ListenNotifications extends Thread {
 
-    private IJPAUtil hibernateUtil;
-    private PGConnection pgconn;
-    private String rootPath;
+    // Tiempo máximo que se espera a que lleguen notificaciones en cada
+    // llamada (la espera es bloqueante, no hay sondeo).
+    private static final int NOTIFICATION_TIMEOUT = 10000;
 
-    public ListenNotifications(String rootPath) throws Exception {
-        this.rootPath = rootPath;
-        hibernateUtil = HibernateUtil.getHibernateUtil();
+    private final PGConnection pgconn;
+    private final String rootPath;
+    private final SyncState state;
 
-        ConfigBuilder config = ConfigBuilder.getConfig();
-        Config.DbConnection dbConnection = config.getDbConnection();
+    // Basta con un aviso pendiente: al procesarlo se aplican todos los
+    // cambios que haya en ese momento.
+    private final BlockingQueue<Boolean> wakeUp = new ArrayBlockingQueue<>(1);
+    private final ExecutorService restorePool;
+    private final Thread worker;
+    private volatile boolean heldBack;
 
-        Class.forName("org.postgresql.Driver");
-        String pgUrl = "jdbc:postgresql://"
-                + dbConnection.getAddress()
-                + "/" + dbConnection.getName();
+    public ListenNotifications(String rootPath, SyncState state) throws Exception {
+        this.rootPath = rootPath;
+        this.state = state;
+        IJPAUtil hibernateUtil = HibernateUtil.getHibernateUtil();
 
-        Connection conn = DriverManager.getConnection(
-                pgUrl,
-                dbConnection.getUser(),
-                dbConnection.getPassword());
+        // La conexión se toma del pool y se mantiene mientras dure el hilo,
+        // ya que LISTEN solo tiene efecto en la conexión que lo ejecuta.
+        Connection conn = hibernateUtil.getDataSource().getConnection();
+        conn.setAutoCommit(true);
 
         pgconn = conn.unwrap(org.postgresql.PGConnection.class);
         Statement stmt = conn.createStatement();
-        stmt.execute("LISTEN nuevofichero");
+        stmt.execute("LISTEN " + ChangeLog.CHANNEL);
         stmt.close();
+
+        restorePool = Executors.newFixedThreadPool(
+                ConfigBuilder.getConfig().getApp().getRestoreThreads());
+
+        worker = new Thread(this::processChanges, "apply-remote-changes");
+        worker.setDaemon(true);
     }
 
+    /**
+     * Aplica en el hilo actual todos los cambios pendientes desde el cursor.
+     * Se utiliza al arrancar, antes de escanear el directorio local.
+     *
+     * @throws Exception
+     */
+    public void catchUp() throws Exception {
+        heldBack = ChangeLog.applyPendingChanges(rootPath, state, restorePool);
+    }
+
+    @Override
     public void run() {
-        try {
-            while (true) {
-                PGNotification notifications[] = pgconn.getNotifications();
+        worker.start();
 
-                if (notifications != null) {
-                    Session session = hibernateUtil.getSession();
-                    session.beginTransaction();
+        // Puede haber cambios entre la puesta al día inicial y el arranque.
+        wakeUp.offer(Boolean.TRUE);
 
-                    for (int i = 0; i < notifications.length; i++) {
-                        File newFile = hibernateUtil.getElement(
-                                Long.parseLong(notifications[i].getParameter()),
-                                File.class);
-                        DBHelper.restoreFileFromDB(newFile, Paths.get(rootPath));
-                    }
+        try {
+            while (true) {
+                PGNotification notifications[] = pgconn.getNotifications(NOTIFICATION_TIMEOUT);
 
-                    session.getTransaction().commit();
+                if ((notifications != null && notifications.length > 0) || heldBack) {
+                    wakeUp.offer(Boolean.TRUE);
                 }
-
-                Thread.sleep(500);
             }
         } catch (Exception ex) {
             Logger.getLogger(ListenNotifications.class.getName()).log(Level.SEVERE, null, ex);
+        } finally {
+            worker.interrupt();
+            restorePool.shutdownNow();
+        }
+    }
+
+    /**
+     * Etapa que aplica los cambios cada vez que llega un aviso.
+     */
+    private void processChanges() {
+        try {
+            while (true) {
+                wakeUp.take();
+
+                try {
+                    catchUp();
+                } catch (InterruptedException ex) {
+                    throw ex;
+                } catch (Exception ex) {
+                    Logger.getLogger(ListenNotifications.class.getName()).log(Level.SEVERE, null, ex);
+
+                    // El cursor no ha avanzado más allá del lote que ha
+                    // fallado; se vuelve a intentar al vencer la espera.
+                    heldBack = true;
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
         }
     }
 }
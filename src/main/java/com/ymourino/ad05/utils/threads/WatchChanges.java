@@ -23,30 +23,198 @@
  */
 package com.ymourino.ad05.utils.threads;
 
+import com.ymourino.ad05.persistence.ChunkStore;
 import com.ymourino.ad05.persistence.DBHelper;
+import com.ymourino.ad05.persistence.HibernateUtil;
+import com.ymourino.ad05.utils.ConfigBuilder;
+import com.ymourino.ad05.utils.SyncState;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
+ * Hilo que vigila el directorio local mediante un WatchService y traslada a la
+ * base de datos únicamente los elementos que han cambiado. Periódicamente (y
+ * con poca frecuencia) se hace un escaneo completo como red de seguridad.
+ *
+ * El manifiesto se actualiza con cada cambio trasladado y se guarda al
+ * terminar cada grupo de eventos, de forma que la siguiente sincronización al
+ * arrancar no vuelva a procesar lo ya subido.
  *
  * @author Yago Mouriño Mendaña
  */
 public class WatchChanges extends Thread {
 
-    private String rootPath;
+    // Tiempo que se espera a que lleguen más eventos antes de procesarlos,
+    // para agrupar las ráfagas de cambios sobre un mismo elemento.
+    private static final long EVENT_BATCH_WAIT = 200;
+
+    private final String rootPath;
+    private final SyncState state;
+    private final Path normalizedRootPath;
+    private final long fullScanInterval;
+    private final WatchService watchService;
+    private final Map<WatchKey, Path> watchedDirectories = new HashMap<>();
 
-    public WatchChanges(String rootPath) throws Exception {
+    public WatchChanges(String rootPath, SyncState state) throws Exception {
         this.rootPath = rootPath;
+        this.state = state;
+        this.normalizedRootPath = Paths.get(rootPath).toAbsolutePath().normalize();
+        this.fullScanInterval = TimeUnit.MINUTES.toMillis(
+                ConfigBuilder.getConfig().getApp().getFullScanInterval());
+        this.watchService = FileSystems.getDefault().newWatchService();
     }
 
     public void run() {
         try {
+            registerAll(normalizedRootPath);
+            long nextFullScan = System.currentTimeMillis() + fullScanInterval;
+
             while (true) {
-                DBHelper.addDirectoryToDB(rootPath);
-                Thread.sleep(10000);
+                long timeout = nextFullScan - System.currentTimeMillis();
+                WatchKey key = timeout > 0
+                        ? watchService.poll(timeout, TimeUnit.MILLISECONDS)
+                        : null;
+
+                if (key == null) {
+                    // No hay eventos y se ha cumplido el intervalo: se
+                    // comprueba todo el árbol por si se hubiese perdido algún
+                    // cambio (solo se recorren en la base de datos los
+                    // subárboles cuyo resumen agregado no coincide).
+                    DBHelper.reconcileDirectoryWithDB(rootPath, state.getManifest());
+                    state.saveManifest();
+                    ChunkStore.deleteUnreferenced(HibernateUtil.getHibernateUtil());
+                    registerAll(normalizedRootPath);
+                    nextFullScan = System.currentTimeMillis() + fullScanInterval;
+                    continue;
+                }
+
+                // Se agrupan todos los eventos disponibles. Si un elemento
+                // recibe varios eventos, prevalece el último.
+                Map<Path, WatchEvent.Kind<?>> changes = new LinkedHashMap<>();
+
+                do {
+                    collectEvents(key, changes);
+                    key = watchService.poll(EVENT_BATCH_WAIT, TimeUnit.MILLISECONDS);
+                } while (key != null);
+
+                for (Map.Entry<Path, WatchEvent.Kind<?>> change : changes.entrySet()) {
+                    try {
+                        applyChange(change.getKey(), change.getValue());
+                    } catch (Exception ex) {
+                        Logger.getLogger(WatchChanges.class.getName()).log(Level.SEVERE, null, ex);
+                    }
+                }
+
+                state.saveManifest();
             }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
         } catch (Exception ex) {
             Logger.getLogger(WatchChanges.class.getName()).log(Level.SEVERE, null, ex);
         }
     }
+
+    /**
+     * Extrae los eventos de una clave y los añade al mapa de cambios.
+     *
+     * @param key
+     * @param changes
+     */
+    private void collectEvents(WatchKey key, Map<Path, WatchEvent.Kind<?>> changes) {
+        Path directory = watchedDirectories.get(key);
+
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (directory == null) {
+                continue;
+            }
+
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                // Se han perdido eventos: se vuelve a escanear el directorio
+                // completo afectado.
+                changes.remove(directory);
+                changes.put(directory, StandardWatchEventKinds.OVERFLOW);
+            } else {
+                Path child = directory.resolve((Path) event.context());
+                changes.remove(child);
+                changes.put(child, event.kind());
+            }
+        }
+
+        if (!key.reset()) {
+            watchedDirectories.remove(key);
+        }
+    }
+
+    /**
+     * Traslada a la base de datos un cambio concreto.
+     *
+     * @param path Elemento afectado.
+     * @param kind Tipo de cambio.
+     * @throws Exception
+     */
+    private void applyChange(Path path, WatchEvent.Kind<?> kind) throws Exception {
+        if (SyncState.isStatePath(normalizedRootPath.relativize(path).toString())) {
+            return;
+        }
+
+        if (kind == StandardWatchEventKinds.ENTRY_DELETE) {
+            if (!Files.exists(path)) {
+                DBHelper.removeFromDB(rootPath, path, state.getManifest());
+            }
+        } else if (Files.isDirectory(path)) {
+            // Un directorio nuevo (o un desbordamiento) obliga a registrar y
+            // escanear todo el subárbol, ya que pudo llenarse antes de que se
+            // registrase en el WatchService.
+            if (kind == StandardWatchEventKinds.ENTRY_CREATE
+                    || kind == StandardWatchEventKinds.OVERFLOW) {
+                registerAll(path);
+                DBHelper.addSubtreeToDB(rootPath, path, state.getManifest());
+            }
+        } else if (Files.isRegularFile(path)) {
+            DBHelper.addFileToDB(rootPath, path, state.getManifest());
+        }
+    }
+
+    /**
+     * Registra en el WatchService un directorio y todos sus subdirectorios.
+     *
+     * @param start
+     * @throws IOException
+     */
+    private void registerAll(Path start) throws IOException {
+        Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                if (SyncState.isStatePath(normalizedRootPath.relativize(dir).toString())) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+
+                // Registrar de nuevo un directorio devuelve la misma clave,
+                // por lo que no se duplica la vigilancia.
+                WatchKey key = dir.register(watchService,
+                        StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_MODIFY,
+                        StandardWatchEventKinds.ENTRY_DELETE);
+                watchedDirectories.put(key, dir);
+
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
 }
@@ -27,15 +27,20 @@
  * @author Yago Mouriño Mendaña
  */
 module com.ymourino.minicloud {
+    requires cache.api;
     requires com.google.gson;
+    requires com.zaxxer.hikari;
+    requires ehcache;
     requires java.desktop;
     requires java.logging;
+    requires java.naming;
     requires java.persistence;
     requires java.sql;
     requires java.transaction;
     requires java.validation;
     requires org.apache.commons.io;
     requires org.hibernate.orm.core;
+    requires org.hibernate.orm.jcache;
     requires org.postgresql.jdbc;
 
     opens com.ymourino.ad05.utils;
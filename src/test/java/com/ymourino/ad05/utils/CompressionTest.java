@@ -0,0 +1,121 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2020 Yago Mouriño Mendaña
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.ymourino.ad05.utils;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Pruebas de la compresión de fragmentos.
+ *
+ * @author Yago Mouriño Mendaña
+ */
+public class CompressionTest {
+
+    @Test
+    public void compressibleDataRoundTrips() throws IOException {
+        byte[] data = repeatedText(64 * 1024);
+
+        for (int level = 1; level <= 9; level++) {
+            byte[] compressed = Compression.compress(Compression.CODEC_DEFLATE, level, data);
+
+            assertNotNull(compressed);
+            assertTrue(compressed.length < data.length);
+            assertArrayEquals(data, Compression.decompress(Compression.CODEC_DEFLATE,
+                    compressed, data.length));
+        }
+    }
+
+    @Test
+    public void incompressibleDataIsNotCompressed() {
+        byte[] data = new byte[64 * 1024];
+        new Random(1).nextBytes(data);
+
+        assertNull(Compression.compress(Compression.CODEC_DEFLATE, 1, data));
+    }
+
+    @Test
+    public void barelyCompressibleDataIsNotCompressed() {
+        // Con el 95% de los datos aleatorios no se llega a ahorrar el 10%.
+        byte[] data = repeatedText(64 * 1024);
+        byte[] noise = new byte[data.length * 19 / 20];
+        new Random(2).nextBytes(noise);
+        System.arraycopy(noise, 0, data, 0, noise.length);
+
+        assertNull(Compression.compress(Compression.CODEC_DEFLATE, 9, data));
+    }
+
+    @Test
+    public void noneCodecStoresDataAsIs() throws IOException {
+        byte[] data = repeatedText(1024);
+
+        assertNull(Compression.compress(Compression.CODEC_NONE, 1, data));
+        assertSame(data, Compression.decompress(Compression.CODEC_NONE, data, data.length));
+    }
+
+    @Test
+    public void emptyDataIsNotCompressed() {
+        assertNull(Compression.compress(Compression.CODEC_DEFLATE, 1, new byte[0]));
+    }
+
+    @Test
+    public void truncatedDataIsRejected() {
+        byte[] data = repeatedText(64 * 1024);
+        byte[] compressed = Compression.compress(Compression.CODEC_DEFLATE, 1, data);
+        byte[] truncated = Arrays.copyOf(compressed, compressed.length / 2);
+
+        assertThrows(IOException.class, () -> Compression.decompress(
+                Compression.CODEC_DEFLATE, truncated, data.length));
+    }
+
+    @Test
+    public void unknownCodecIsRejected() {
+        assertThrows(IOException.class, () -> Compression.decompress((short) 99, new byte[1], 1));
+        assertThrows(IllegalArgumentException.class, () -> Compression.codecFromName("zstd"));
+    }
+
+    @Test
+    public void codecNamesAreCaseInsensitive() {
+        assertEquals(Compression.CODEC_DEFLATE, Compression.codecFromName("Deflate"));
+        assertEquals(Compression.CODEC_NONE, Compression.codecFromName("NONE"));
+        assertEquals(Compression.CODEC_NONE, Compression.codecFromName(null));
+    }
+
+    private static byte[] repeatedText(int length) {
+        byte[] text = "Lorem ipsum dolor sit amet, consectetur adipiscing elit. "
+                .getBytes(StandardCharsets.UTF_8);
+        byte[] data = new byte[length];
+
+        for (int i = 0; i < length; i++) {
+            data[i] = text[i % text.length];
+        }
+
+        return data;
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2020 Yago Mouriño Mendaña
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.ymourino.ad05.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Pruebas de la división en fragmentos con FastCDC.
+ *
+ * @author Yago Mouriño Mendaña
+ */
+public class FastCDCTest {
+
+    @Test
+    public void emptyStreamHasNoChunks() throws IOException {
+        assertNull(new FastCDC(new ByteArrayInputStream(new byte[0])).nextChunk());
+    }
+
+    @Test
+    public void smallStreamIsASingleChunk() throws IOException {
+        byte[] data = randomBytes(1, FastCDC.MIN_SIZE - 1);
+        List<byte[]> chunks = split(data);
+
+        assertEquals(1, chunks.size());
+        assertArrayEquals(data, chunks.get(0));
+    }
+
+    @Test
+    public void chunksRespectMinimumAndMaximumSizes() throws IOException {
+        byte[] data = randomBytes(2, 8 * 1024 * 1024);
+        List<byte[]> chunks = split(data);
+
+        for (int i = 0; i < chunks.size(); i++) {
+            int length = chunks.get(i).length;
+            assertTrue(length <= FastCDC.MAX_SIZE, "Fragmento " + i + " de " + length + " bytes");
+
+            // Solo el último puede quedarse por debajo del mínimo.
+            if (i < chunks.size() - 1) {
+                assertTrue(length >= FastCDC.MIN_SIZE, "Fragmento " + i + " de " + length + " bytes");
+            }
+        }
+
+        assertArrayEquals(data, concat(chunks));
+    }
+
+    @Test
+    public void averageSizeIsCloseToTheTarget() throws IOException {
+        byte[] data = randomBytes(3, 16 * 1024 * 1024);
+        List<byte[]> chunks = split(data);
+        int average = data.length / chunks.size();
+
+        assertTrue(average > FastCDC.AVG_SIZE / 2 && average < FastCDC.AVG_SIZE * 2,
+                "Tamaño medio de " + average + " bytes");
+    }
+
+    @Test
+    public void uniformDataIsCutAtTheMaximumSize() throws IOException {
+        byte[] data = new byte[FastCDC.MAX_SIZE * 3 + 100];
+        List<byte[]> chunks = split(data);
+
+        assertEquals(4, chunks.size());
+
+        for (int i = 0; i < 3; i++) {
+            assertEquals(FastCDC.MAX_SIZE, chunks.get(i).length);
+        }
+
+        assertEquals(100, chunks.get(3).length);
+    }
+
+    @Test
+    public void insertionOnlyChangesNearbyChunks() throws IOException {
+        byte[] data = randomBytes(4, 4 * 1024 * 1024);
+        byte[] edited = new byte[data.length + 10];
+        int offset = data.length / 2;
+
+        System.arraycopy(data, 0, edited, 0, offset);
+        System.arraycopy(randomBytes(5, 10), 0, edited, offset, 10);
+        System.arraycopy(data, offset, edited, offset + 10, data.length - offset);
+
+        List<byte[]> original = split(data);
+        Set<String> originalChunks = new HashSet<>();
+
+        for (byte[] chunk : original) {
+            originalChunks.add(Arrays.toString(chunk));
+        }
+
+        int changed = 0;
+
+        for (byte[] chunk : split(edited)) {
+            if (!originalChunks.contains(Arrays.toString(chunk))) {
+                changed++;
+            }
+        }
+
+        assertTrue(changed <= 2, changed + " fragmentos distintos de " + original.size());
+    }
+
+    private static List<byte[]> split(byte[] data) throws IOException {
+        FastCDC chunker = new FastCDC(new ByteArrayInputStream(data));
+        List<byte[]> chunks = new ArrayList<>();
+        byte[] chunk;
+
+        while ((chunk = chunker.nextChunk()) != null) {
+            chunks.add(chunk);
+        }
+
+        return chunks;
+    }
+
+    private static byte[] concat(List<byte[]> chunks) throws IOException {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+
+        for (byte[] chunk : chunks) {
+            os.write(chunk);
+        }
+
+        return os.toByteArray();
+    }
+
+    private static byte[] randomBytes(long seed, int length) {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+}
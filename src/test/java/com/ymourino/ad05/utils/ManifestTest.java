@@ -0,0 +1,174 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2020 Yago Mouriño Mendaña
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.ymourino.ad05.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Pruebas del manifiesto local.
+ *
+ * @author Yago Mouriño Mendaña
+ */
+public class ManifestTest {
+
+    private static final String DIGEST = "ffeeddccbbaa99887766554433221100"
+            + "ffeeddccbbaa99887766554433221100";
+
+    @TempDir
+    Path directory;
+
+    @Test
+    public void missingFileGivesAnEmptyManifest() throws IOException {
+        Manifest manifest = Manifest.read(directory.resolve("manifest"));
+
+        assertTrue(manifest.getEntries().isEmpty());
+    }
+
+    @Test
+    public void invalidFileGivesAnEmptyManifest() throws IOException {
+        Path file = directory.resolve("manifest");
+        Files.write(file, new byte[]{1, 2, 3, 4, 5, 6, 7, 8, 9});
+
+        assertTrue(Manifest.read(file).getEntries().isEmpty());
+    }
+
+    @Test
+    public void writtenManifestReadsBackTheSame() throws IOException {
+        Manifest manifest = new Manifest();
+        manifest.put(new Manifest.Entry("docs", true, 0, 0, null, 1));
+        manifest.put(new Manifest.Entry(path("docs", "a.txt"), false, 10, 1000, DIGEST, 2));
+        manifest.put(new Manifest.Entry("b.txt", false, 20, 2000, null, 3));
+
+        Manifest copy = writeAndRead(manifest);
+
+        assertEquals(3, copy.getEntries().size());
+        assertTrue(copy.get("docs").isDirectory());
+
+        Manifest.Entry file = copy.get(path("docs", "a.txt"));
+        assertEquals(10, file.getSize());
+        assertEquals(1000, file.getLastModified());
+        assertEquals(DIGEST, file.getDigest());
+        assertEquals(2, file.getId());
+        assertNull(copy.get("b.txt").getDigest());
+    }
+
+    @Test
+    public void changesAfterReadingOverrideTheSnapshot() throws IOException {
+        Manifest manifest = new Manifest();
+        manifest.put(new Manifest.Entry("a.txt", false, 10, 1000, null, 1));
+        manifest.put(new Manifest.Entry("b.txt", false, 20, 2000, null, 2));
+        Manifest copy = writeAndRead(manifest);
+
+        copy.put(new Manifest.Entry("a.txt", false, 11, 1100, null, 1));
+        copy.remove("b.txt");
+
+        assertEquals(11, copy.get("a.txt").getSize());
+        assertNull(copy.get("b.txt"));
+        assertEquals(1, copy.getEntries().size());
+
+        Manifest reread = writeAndRead(copy);
+        assertEquals(11, reread.get("a.txt").getSize());
+        assertNull(reread.get("b.txt"));
+    }
+
+    @Test
+    public void removeTreeRemovesTheWholeSubtree() throws IOException {
+        Manifest manifest = new Manifest();
+        manifest.put(new Manifest.Entry("docs", true, 0, 0, null, 1));
+        manifest.put(new Manifest.Entry(path("docs", "a.txt"), false, 10, 1000, null, 2));
+        manifest.put(new Manifest.Entry("docs2", true, 0, 0, null, 3));
+        Manifest copy = writeAndRead(manifest);
+
+        // Una entrada añadida después de leer también se elimina.
+        copy.put(new Manifest.Entry(path("docs", "sub"), true, 0, 0, null, 4));
+        copy.removeTree("docs");
+
+        assertNull(copy.get("docs"));
+        assertNull(copy.get(path("docs", "a.txt")));
+        assertNull(copy.get(path("docs", "sub")));
+        assertNotNull(copy.get("docs2"));
+
+        // Volver a añadir una ruta dentro del subárbol eliminado.
+        copy.put(new Manifest.Entry("docs", true, 0, 0, null, 5));
+        assertEquals(5, copy.get("docs").getId());
+
+        Manifest reread = writeAndRead(copy);
+        assertEquals(2, reread.getEntries().size());
+        assertEquals(5, reread.get("docs").getId());
+    }
+
+    @Test
+    public void trackerReportsEntriesNotSeen() throws IOException {
+        Manifest manifest = new Manifest();
+        manifest.put(new Manifest.Entry("a.txt", false, 10, 1000, null, 1));
+        manifest.put(new Manifest.Entry("b.txt", false, 20, 2000, null, 2));
+        manifest.put(new Manifest.Entry(path("c", "d.txt"), false, 30, 3000, null, 3));
+
+        Manifest.Tracker tracker = manifest.track();
+        tracker.markSeen("a.txt");
+        tracker.markSeen("unknown.txt");
+
+        List<Manifest.Entry> missing = tracker.getMissing();
+        assertEquals(2, missing.size());
+        assertTrue(missing.stream().anyMatch((entry) -> entry.getPath().equals("b.txt")));
+        assertTrue(missing.stream().anyMatch((entry) -> entry.getPath().equals(path("c", "d.txt"))));
+    }
+
+    @Test
+    public void entriesMatchBySizeAndDate() {
+        Manifest.Entry file = new Manifest.Entry("a.txt", false, 10, 1000, null, 1);
+        Manifest.Entry folder = new Manifest.Entry("docs", true, 0, 0, null, 2);
+
+        assertTrue(file.matches(10, 1000));
+        assertFalse(file.matches(10, 1001));
+        assertFalse(file.matches(11, 1000));
+        assertFalse(folder.matches(0, 0));
+    }
+
+    /**
+     * Escribe el manifiesto en un fichero y lo vuelve a leer (mapeándolo en
+     * memoria).
+     *
+     * @param manifest
+     * @return
+     * @throws IOException
+     */
+    private Manifest writeAndRead(Manifest manifest) throws IOException {
+        Path file = Files.createTempFile(directory, "manifest", null);
+        manifest.write(file);
+        return Manifest.read(file);
+    }
+
+    private static String path(String... segments) {
+        return String.join(File.separator, segments);
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2020 Yago Mouriño Mendaña
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.ymourino.ad05.utils;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Pruebas del resumen agregado de los directorios.
+ *
+ * @author Yago Mouriño Mendaña
+ */
+public class TreeHashTest {
+
+    private static final String DIGEST_A = "aa".repeat(32);
+    private static final String DIGEST_B = "bb".repeat(32);
+
+    @Test
+    public void emptyDirectoriesHaveTheSameHash() {
+        String hash = new TreeHash().build();
+
+        assertEquals(hash, new TreeHash().build());
+        assertEquals(64, hash.length());
+    }
+
+    @Test
+    public void hashDoesNotDependOnTheOrderOfChildren() {
+        String first = new TreeHash()
+                .addFile("a.txt", 10, DIGEST_A)
+                .addFile("b.txt", 20, DIGEST_B)
+                .addDirectory("sub", DIGEST_A)
+                .build();
+        String second = new TreeHash()
+                .addDirectory("sub", DIGEST_A)
+                .addFile("b.txt", 20, DIGEST_B)
+                .addFile("a.txt", 10, DIGEST_A)
+                .build();
+
+        assertEquals(first, second);
+    }
+
+    @Test
+    public void hashChangesWithAnyFileAttribute() {
+        String hash = new TreeHash().addFile("a.txt", 10, DIGEST_A).build();
+
+        assertNotEquals(hash, new TreeHash().addFile("b.txt", 10, DIGEST_A).build());
+        assertNotEquals(hash, new TreeHash().addFile("a.txt", 11, DIGEST_A).build());
+        assertNotEquals(hash, new TreeHash().addFile("a.txt", 10, DIGEST_B).build());
+        assertNotEquals(hash, new TreeHash().addFile("a.txt", 10, DIGEST_A)
+                .addFile("b.txt", 10, DIGEST_A).build());
+    }
+
+    @Test
+    public void subdirectoryHashChangesPropagate() {
+        String child = new TreeHash().addFile("a.txt", 10, DIGEST_A).build();
+        String modifiedChild = new TreeHash().addFile("a.txt", 10, DIGEST_B).build();
+
+        assertNotEquals(new TreeHash().addDirectory("sub", child).build(),
+                new TreeHash().addDirectory("sub", modifiedChild).build());
+    }
+
+    @Test
+    public void filesAndDirectoriesAreDistinguished() {
+        assertNotEquals(new TreeHash().addFile("x", 0, null).build(),
+                new TreeHash().addDirectory("x", "0:").build());
+    }
+
+    @Test
+    public void namesCannotBleedIntoValues() {
+        assertNotEquals(new TreeHash().addFile("a1", 0, DIGEST_A).build(),
+                new TreeHash().addFile("a", 10, DIGEST_A).build());
+    }
+
+    @Test
+    public void missingDigestCountsAsEmpty() {
+        assertEquals(new TreeHash().addFile("a.txt", 10, null).build(),
+                new TreeHash().addFile("a.txt", 10, "").build());
+        assertEquals(new TreeHash().addDirectory("sub", null).build(),
+                new TreeHash().addDirectory("sub", "").build());
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2020 Yago Mouriño Mendaña
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.ymourino.ad05.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Pruebas de la copia compacta del árbol del manifiesto.
+ *
+ * @author Yago Mouriño Mendaña
+ */
+public class TreeSnapshotTest {
+
+    private static final String DIGEST = "00112233445566778899aabbccddeeff"
+            + "00112233445566778899aabbccddeeff";
+
+    @Test
+    public void emptySnapshotOnlyHasTheRoot() {
+        TreeSnapshot snapshot = TreeSnapshot.empty();
+
+        assertEquals(1, snapshot.size());
+        assertEquals(0, snapshot.find(""));
+        assertEquals(TreeSnapshot.NOT_FOUND, snapshot.find("a"));
+    }
+
+    @Test
+    public void entriesAreFoundByPath() {
+        List<Manifest.Entry> entries = sampleEntries();
+        TreeSnapshot snapshot = TreeSnapshot.build(entries);
+
+        for (Manifest.Entry entry : entries) {
+            int index = snapshot.find(entry.getPath());
+
+            assertNotEquals(TreeSnapshot.NOT_FOUND, index, entry.getPath());
+            assertEntryEquals(entry, snapshot.getEntry(index));
+            assertEquals(entry.getPath(), snapshot.getPath(index));
+        }
+
+        assertEquals(TreeSnapshot.NOT_FOUND, snapshot.find(path("docs", "missing.txt")));
+        assertEquals(TreeSnapshot.NOT_FOUND, snapshot.find(path("nothing", "here")));
+    }
+
+    @Test
+    public void missingAncestorsAreImplicit() {
+        TreeSnapshot snapshot = TreeSnapshot.build(Arrays.asList(
+                new Manifest.Entry(path("a", "b", "c.txt"), false, 1, 2, null, 3)));
+        int index = snapshot.find(path("a", "b"));
+
+        assertNotEquals(TreeSnapshot.NOT_FOUND, index);
+        assertNull(snapshot.getEntry(index));
+
+        List<Manifest.Entry> visited = new ArrayList<>();
+        snapshot.forEach(visited::add);
+        assertEquals(1, visited.size());
+        assertEquals(path("a", "b", "c.txt"), visited.get(0).getPath());
+    }
+
+    @Test
+    public void forEachVisitsEveryEntry() {
+        List<Manifest.Entry> entries = sampleEntries();
+        List<String> visited = new ArrayList<>();
+
+        TreeSnapshot.build(entries).forEach((entry) -> visited.add(entry.getPath()));
+
+        assertEquals(entries.size(), visited.size());
+
+        for (Manifest.Entry entry : entries) {
+            assertTrue(visited.contains(entry.getPath()), entry.getPath());
+        }
+    }
+
+    @Test
+    public void writtenSnapshotReadsBackTheSame() throws IOException {
+        List<Manifest.Entry> entries = sampleEntries();
+        TreeSnapshot original = TreeSnapshot.build(entries);
+
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+
+        try (WritableByteChannel channel = Channels.newChannel(os)) {
+            original.write(channel);
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(os.toByteArray());
+        TreeSnapshot copy = TreeSnapshot.read(buffer);
+
+        assertFalse(buffer.hasRemaining());
+        assertEquals(original.size(), copy.size());
+
+        for (Manifest.Entry entry : entries) {
+            assertEntryEquals(entry, copy.getEntry(copy.find(entry.getPath())));
+        }
+    }
+
+    private static List<Manifest.Entry> sampleEntries() {
+        List<Manifest.Entry> entries = new ArrayList<>();
+        entries.add(new Manifest.Entry("docs", true, 0, 0, null, 1));
+        entries.add(new Manifest.Entry(path("docs", "b.txt"), false, 10, 1000, DIGEST, 2));
+        entries.add(new Manifest.Entry(path("docs", "a.txt"), false, 20, 2000, null, 3));
+        entries.add(new Manifest.Entry(path("docs", "sub"), true, 0, 0, null, 4));
+        entries.add(new Manifest.Entry(path("docs", "sub", "ñandú.bin"), false, 30, 3000, DIGEST, 5));
+        entries.add(new Manifest.Entry("readme.md", false, 40, 4000, DIGEST, 6));
+
+        // Suficientes hermanos para que la búsqueda binaria tenga varios pasos.
+        for (int i = 0; i < 100; i++) {
+            entries.add(new Manifest.Entry(path("many", "file" + i), false, i, i, null, 100 + i));
+        }
+
+        return entries;
+    }
+
+    private static void assertEntryEquals(Manifest.Entry expected, Manifest.Entry actual) {
+        assertNotNull(actual, expected.getPath());
+        assertEquals(expected.getPath(), actual.getPath());
+        assertEquals(expected.isDirectory(), actual.isDirectory());
+        assertEquals(expected.getSize(), actual.getSize());
+        assertEquals(expected.getLastModified(), actual.getLastModified());
+        assertEquals(expected.getDigest(), actual.getDigest());
+        assertEquals(expected.getId(), actual.getId());
+    }
+
+    private static String path(String... segments) {
+        return String.join(File.separator, segments);
+    }
+}